@@ -61,6 +61,10 @@ public class Application implements Callable<Integer> {
         @Option(names = "--mapping", paramLabel = "<file>", description = "store the commit mapping", order = LOW)
         File commitMappingFile;
 
+        @Option(names = "--mapping-format", paramLabel = "<format>", description = "format of the commit mapping: ${COMPLETION-CANDIDATES} (default: ${DEFAULT-VALUE})",
+                order = LOW)
+        MappingFormat commitMappingFormat = MappingFormat.json;
+
         @Option(names = "--log", paramLabel = "<level>", description = "log level (default: ${DEFAULT-VALUE})", order = LOW,
                 converter = LevelConverter.class)
         Level logLevel = Level.INFO;
@@ -126,8 +130,12 @@ public class Application implements Callable<Integer> {
 
         if (conf.commitMappingFile != null) {
             log.debug("Save commit mapping to {}", conf.commitMappingFile);
-            final byte[] content = new Gson().toJson(rewriter.exportCommitMapping()).getBytes();
-            FileUtils.writeByteArrayToFile(conf.commitMappingFile, content);
+            if (conf.commitMappingFormat == MappingFormat.binary) {
+                rewriter.exportCommitMapping(conf.commitMappingFile);
+            } else {
+                final byte[] content = new Gson().toJson(rewriter.exportCommitMapping()).getBytes();
+                FileUtils.writeByteArrayToFile(conf.commitMappingFile, content);
+            }
         }
 
         return 0;
@@ -188,6 +196,10 @@ public class Application implements Callable<Integer> {
         return result;
     }
 
+    public enum MappingFormat {
+        json, binary
+    }
+
     public static class LevelConverter implements ITypeConverter<Level> {
         @Override
         public Level convert(final String value) throws Exception {
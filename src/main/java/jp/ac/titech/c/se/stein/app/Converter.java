@@ -3,12 +3,17 @@ package jp.ac.titech.c.se.stein.app;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.filefilter.WildcardFileFilter;
+import org.apache.commons.io.input.ProxyInputStream;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,10 +47,40 @@ public class Converter extends RepositoryRewriter {
         if (filter != null && !filter.accept(new File(e.name))) {
             return isExcluding ? RepositoryRewriter.ZERO : super.rewriteBlob(blobId, c);
         }
-        return target.writeBlob(convert(e.name, source.readBlob(blobId, c)), c);
+        try {
+            return transformBlob(blobId, (in, out) -> convert(e.name, in, out), c);
+        } catch (final UncheckedIOException ex) {
+            // errors other than those of the endpoint, e.g., on writing the blob, are not recoverable
+            if (!(ex.getCause() instanceof ConversionException)) {
+                throw ex;
+            }
+            log.error("IOException occurred: {}", ex);
+            return super.rewriteBlob(blobId, c);
+        }
+    }
+
+    /**
+     * An error in communicating with the endpoint.
+     */
+    protected static class ConversionException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ConversionException(final String message) {
+            super(message);
+        }
+
+        public ConversionException(final IOException cause) {
+            super(cause);
+        }
     }
 
-    protected byte[] convert(final String filename, final byte[] content) {
+    /**
+     * Sends the content to the endpoint and writes the response. A
+     * ConversionException is thrown on the failure of the endpoint, in which
+     * case what has been written is discarded.
+     */
+    protected void convert(final String filename, final ObjectStream in, final OutputStream out) throws IOException {
+        final InputStream received;
         try {
             final HttpURLConnection conn = (HttpURLConnection) endpoint.openConnection();
             conn.setRequestMethod("POST");
@@ -53,17 +88,28 @@ public class Converter extends RepositoryRewriter {
             conn.setDoOutput(true);
             conn.setRequestProperty("Content-type", "text/plain");
             conn.setRequestProperty("Accept", "text/plain");
-            conn.setRequestProperty("Content-Length", String.valueOf(content.length));
-            conn.getOutputStream().write(content);
-            if (conn.getResponseCode() == 200) {
-                return IOUtils.toByteArray(conn.getInputStream());
-            } else {
-                log.error("Bad status code in respoonse: {}", conn.getResponseCode());
+            conn.setFixedLengthStreamingMode(in.getSize());
+            try (final OutputStream body = conn.getOutputStream()) {
+                IOUtils.copyLarge(in, body);
             }
+            if (conn.getResponseCode() != 200) {
+                throw new ConversionException("Bad status code in response: " + conn.getResponseCode());
+            }
+            received = conn.getInputStream();
+        } catch (final ConversionException e) {
+            throw e;
         } catch (final IOException e) {
-            log.error("IOException occurred: {}", e);
+            throw new ConversionException(e);
+        }
+        // only the errors on reading the response are of the endpoint
+        try (final InputStream response = new ProxyInputStream(received) {
+            @Override
+            protected void handleIOException(final IOException e) throws IOException {
+                throw new ConversionException(e);
+            }
+        }) {
+            IOUtils.copyLarge(response, out);
         }
-        return content;
     }
 
     public static void main(final String[] args) {
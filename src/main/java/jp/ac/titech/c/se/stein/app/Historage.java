@@ -92,7 +92,8 @@ public class Historage extends RepositoryRewriter {
         }
         final String content = new String(source.readBlob(entry.id, c), StandardCharsets.UTF_8);
         for (final Module m : new ModuleGenerator(entry.name, content).generate()) {
-            final ObjectId newId = target.writeBlob(m.getContent().getBytes(StandardCharsets.UTF_8), c);
+            final byte[] data = m.getContent().getBytes(StandardCharsets.UTF_8);
+            final ObjectId newId = target.writeBlob(data, c.getPath() + "/" + m.getFilename(), c);
             log.debug("Generate module: {} [{}] from {} ({})", m.getFilename(), newId.name(), entry, c);
             result.add(new Entry(entry.mode, m.getFilename(), newId, entry.directory));
         }
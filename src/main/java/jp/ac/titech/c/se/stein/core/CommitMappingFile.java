@@ -0,0 +1,310 @@
+package jp.ac.titech.c.se.stein.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.MutableObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * A binary file of a commit mapping.
+ *
+ * The file consists of a header (the magic "SMAP", the version, and the number
+ * of the mappings), the fixed-width records of the source and the destination
+ * commit ids (20 + 20 bytes) sorted by the source id, and the records of the
+ * destination and the source commit ids sorted by the destination id as the
+ * reverse index. Since the records can be binary-searched as they are, the
+ * file is memory-mapped on reading instead of being parsed. Each section is
+ * mapped separately, and must not exceed 2 GiB.
+ *
+ * Lookups into a MutableObjectId allocate nothing, and can be performed
+ * concurrently from multiple threads.
+ */
+public class CommitMappingFile {
+    protected static final byte[] MAGIC = { 'S', 'M', 'A', 'P' };
+
+    protected static final int VERSION = 2;
+
+    /**
+     * The version without the reverse index.
+     */
+    protected static final int VERSION_FORWARD_ONLY = 1;
+
+    protected static final int HEADER_SIZE = 16;
+
+    protected static final int ID_LENGTH = Constants.OBJECT_ID_LENGTH;
+
+    protected static final int RECORD_SIZE = 2 * ID_LENGTH;
+
+    /**
+     * The maximum number of the mappings, so that a section fits in 2 GiB.
+     */
+    protected static final int MAX_SIZE = Integer.MAX_VALUE / RECORD_SIZE;
+
+    private final ByteBuffer records;
+
+    private final ByteBuffer reverseRecords;
+
+    private final int size;
+
+    protected CommitMappingFile(final ByteBuffer records, final ByteBuffer reverseRecords, final int size) {
+        this.records = records;
+        this.reverseRecords = reverseRecords;
+        this.size = size;
+    }
+
+    /**
+     * Writes a commit mapping to a file. The mappings are copied into an
+     * array of raw records, which is sorted in place for each section.
+     */
+    public static void write(final Map<ObjectId, ObjectId> mapping, final File file) throws IOException {
+        if (mapping.size() > MAX_SIZE) {
+            throw new IOException("Too many mappings for a commit mapping file: " + mapping.size());
+        }
+        final byte[] records = new byte[mapping.size() * RECORD_SIZE];
+        final int size;
+        if (mapping instanceof ObjectIdMap) {
+            size = ((ObjectIdMap) mapping).copyRecordsTo(records);
+        } else {
+            int pos = 0;
+            for (final Map.Entry<ObjectId, ObjectId> e : mapping.entrySet()) {
+                e.getKey().copyRawTo(records, pos);
+                e.getValue().copyRawTo(records, pos + ID_LENGTH);
+                pos += RECORD_SIZE;
+            }
+            size = pos / RECORD_SIZE;
+        }
+        try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(size);
+            sortRecords(records, size);
+            out.write(records, 0, size * RECORD_SIZE);
+            swapIds(records, size);
+            sortRecords(records, size);
+            out.write(records, 0, size * RECORD_SIZE);
+        }
+    }
+
+    /**
+     * Swaps the first and the second ids of each record.
+     */
+    private static void swapIds(final byte[] records, final int size) {
+        for (int pos = 0; pos < size * RECORD_SIZE; pos += RECORD_SIZE) {
+            for (int k = 0; k < ID_LENGTH; k++) {
+                final byte b = records[pos + k];
+                records[pos + k] = records[pos + ID_LENGTH + k];
+                records[pos + ID_LENGTH + k] = b;
+            }
+        }
+    }
+
+    /**
+     * Sorts the records by their first ids with heapsort, which needs no
+     * extra memory.
+     */
+    private static void sortRecords(final byte[] records, final int size) {
+        final byte[] tmp = new byte[RECORD_SIZE];
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(records, i, size, tmp);
+        }
+        for (int n = size - 1; n > 0; n--) {
+            swapRecords(records, 0, n, tmp);
+            siftDown(records, 0, n, tmp);
+        }
+    }
+
+    private static void siftDown(final byte[] records, int i, final int size, final byte[] tmp) {
+        for (int child; (child = 2 * i + 1) < size; i = child) {
+            if (child + 1 < size && compareRecords(records, child, child + 1) < 0) {
+                child++;
+            }
+            if (compareRecords(records, i, child) >= 0) {
+                return;
+            }
+            swapRecords(records, i, child, tmp);
+        }
+    }
+
+    private static int compareRecords(final byte[] records, final int i, final int j) {
+        final int pi = i * RECORD_SIZE, pj = j * RECORD_SIZE;
+        for (int k = 0; k < ID_LENGTH; k++) {
+            final int cmp = (records[pi + k] & 0xff) - (records[pj + k] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private static void swapRecords(final byte[] records, final int i, final int j, final byte[] tmp) {
+        System.arraycopy(records, i * RECORD_SIZE, tmp, 0, RECORD_SIZE);
+        System.arraycopy(records, j * RECORD_SIZE, records, i * RECORD_SIZE, RECORD_SIZE);
+        System.arraycopy(tmp, 0, records, j * RECORD_SIZE, RECORD_SIZE);
+    }
+
+    /**
+     * Opens a commit mapping file.
+     */
+    public static CommitMappingFile open(final File file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                continue;
+            }
+            header.flip();
+            final byte[] magic = new byte[MAGIC.length];
+            if (header.remaining() < HEADER_SIZE) {
+                throw new IOException("Not a commit mapping file: " + file);
+            }
+            header.get(magic);
+            final int version = header.getInt();
+            if (!Arrays.equals(magic, MAGIC) || (version != VERSION && version != VERSION_FORWARD_ONLY)) {
+                throw new IOException("Not a commit mapping file: " + file);
+            }
+            final long size = header.getLong();
+            final int nsections = version == VERSION ? 2 : 1;
+            if (size > MAX_SIZE) {
+                throw new IOException("Too many mappings in the commit mapping file: " + file + " (" + size + " mappings)");
+            }
+            if (size < 0 || HEADER_SIZE + nsections * size * RECORD_SIZE > channel.size()) {
+                throw new IOException("Broken commit mapping file: " + file);
+            }
+            final int length = (int) size * RECORD_SIZE;
+            final ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, length);
+            final ByteBuffer reverseRecords = nsections == 2 ? channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + (long) length, length) : null;
+            return new CommitMappingFile(records, reverseRecords, (int) size);
+        }
+    }
+
+    /**
+     * Returns the number of the mappings.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the source commit id of the i-th mapping.
+     */
+    public ObjectId getSource(final int i) {
+        return readId(i * RECORD_SIZE);
+    }
+
+    /**
+     * Returns the destination commit id of the i-th mapping.
+     */
+    public ObjectId getDestination(final int i) {
+        return readId(i * RECORD_SIZE + ID_LENGTH);
+    }
+
+    /**
+     * Looks up the destination commit id for the given source commit id.
+     * Returns null if not found.
+     */
+    public ObjectId lookup(final AnyObjectId source) {
+        final int i = find(records, source);
+        return i >= 0 ? getDestination(i) : null;
+    }
+
+    /**
+     * Looks up the destination commit id for the given source commit id, and
+     * stores it to the result. Returns false if not found.
+     */
+    public boolean lookupForward(final AnyObjectId source, final MutableObjectId result) {
+        return lookup(records, source, result);
+    }
+
+    /**
+     * Tests whether this file has the reverse index, i.e., whether backward
+     * lookups can be performed by binary search.
+     */
+    public boolean hasReverseIndex() {
+        return reverseRecords != null;
+    }
+
+    /**
+     * Looks up the source commit id for the given destination commit id, and
+     * stores it to the result. If multiple source commits are mapped to the
+     * destination commit, one of them is stored. Returns false if not found.
+     * If this file has no reverse index, the records are scanned linearly.
+     */
+    public boolean lookupBackward(final AnyObjectId destination, final MutableObjectId result) {
+        if (reverseRecords == null) {
+            for (int i = 0; i < size; i++) {
+                if (compare(records, destination, i * RECORD_SIZE + ID_LENGTH) == 0) {
+                    readId(records, i * RECORD_SIZE, result);
+                    return true;
+                }
+            }
+            return false;
+        }
+        return lookup(reverseRecords, destination, result);
+    }
+
+    private boolean lookup(final ByteBuffer section, final AnyObjectId key, final MutableObjectId result) {
+        final int i = find(section, key);
+        if (i < 0) {
+            return false;
+        }
+        readId(section, i * RECORD_SIZE + ID_LENGTH, result);
+        return true;
+    }
+
+    private static void readId(final ByteBuffer section, final int pos, final MutableObjectId result) {
+        for (int k = 0; k < ID_LENGTH; k++) {
+            result.setByte(k, section.get(pos + k) & 0xff);
+        }
+    }
+
+    /**
+     * Finds the index of the record for the given key in a section by binary
+     * search. Returns -1 if not found.
+     */
+    protected int find(final ByteBuffer section, final AnyObjectId key) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int cmp = compare(section, key, mid * RECORD_SIZE);
+            if (cmp < 0) {
+                high = mid - 1;
+            } else if (cmp > 0) {
+                low = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares an id with the id at the given position in unsigned byte order.
+     */
+    private static int compare(final ByteBuffer section, final AnyObjectId id, final int pos) {
+        for (int k = 0; k < ID_LENGTH; k++) {
+            final int cmp = id.getByte(k) - (section.get(pos + k) & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private ObjectId readId(final int pos) {
+        final byte[] raw = new byte[ID_LENGTH];
+        for (int k = 0; k < ID_LENGTH; k++) {
+            raw[k] = records.get(pos + k);
+        }
+        return ObjectId.fromRaw(raw);
+    }
+}
@@ -9,6 +9,7 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevObject;
@@ -16,33 +17,75 @@ import org.eclipse.jgit.revwalk.RevTag;
 
 /**
  * An array for preserving the rewriting context.
+ *
+ * An updated context is represented as an overlay of the updated value on
+ * its parent context, so that no array is copied on each update. Once the
+ * chain of overlays gets long, it is flattened into an array again to keep
+ * lookups cheap.
  */
 public class Context implements Map<Context.Key, Object> {
     /**
      * The keys of the values in a context.
      */
     public enum Key {
-        commit, path, entry, rev, tag, ref, conf, inserter;
+        commit, path, entry, rev, tag, ref, conf, inserter, reader;
 
         public static final Key[] ALL = Key.values();
         public static final int SIZE = ALL.length;
     }
 
+    /**
+     * The maximum number of overlays on an array.
+     */
+    private static final int MAX_DEPTH = 8;
+
     /**
      * A cache of toString() result.
      */
     private transient String cache;
 
     /**
-     * All values in this context.
+     * All values in this context, or null if this context is an overlay.
      */
     private final Object[] values;
 
+    /**
+     * The parent context of an overlay.
+     */
+    private final Context parent;
+
+    /**
+     * The key and the value updated by an overlay.
+     */
+    private final Key key;
+
+    private final Object value;
+
+    /**
+     * The number of overlays from the array.
+     */
+    private final int depth;
+
     /**
      * The constructor.
      */
     private Context(final Object[] values) {
         this.values = values;
+        this.parent = null;
+        this.key = null;
+        this.value = null;
+        this.depth = 0;
+    }
+
+    /**
+     * The constructor of an overlay.
+     */
+    private Context(final Context parent, final Key key, final Object value) {
+        this.values = null;
+        this.parent = parent;
+        this.key = key;
+        this.value = value;
+        this.depth = parent.depth + 1;
     }
 
     /**
@@ -56,7 +99,10 @@ public class Context implements Map<Context.Key, Object> {
      * Returns an updated context by the given key-value pair.
      */
     public Context with(final Key k, final Object v) {
-        final Object[] newValues = values.clone();
+        if (depth < MAX_DEPTH) {
+            return new Context(this, k, v);
+        }
+        final Object[] newValues = flatten();
         newValues[k.ordinal()] = v;
         return new Context(newValues);
     }
@@ -65,21 +111,48 @@ public class Context implements Map<Context.Key, Object> {
      * Returns an updated context by the given key-value pairs.
      */
     public Context with(final Key k1, final Object v1, final Key k2, final Object v2) {
-        final Object[] newValues = values.clone();
-        newValues[k1.ordinal()] = v1;
-        newValues[k2.ordinal()] = v2;
-        return new Context(newValues);
+        return with(k1, v1).with(k2, v2);
     }
 
     /**
      * Returns an updated context by the given key-value pairs.
      */
     public Context with(final Key k1, final Object v1, final Key k2, final Object v2, final Key k3, final Object v3) {
-        final Object[] newValues = values.clone();
-        newValues[k1.ordinal()] = v1;
-        newValues[k2.ordinal()] = v2;
-        newValues[k3.ordinal()] = v3;
-        return new Context(newValues);
+        return with(k1, v1).with(k2, v2).with(k3, v3);
+    }
+
+    /**
+     * Looks up the value of the given key through the overlays.
+     */
+    private Object lookup(final Key k) {
+        Context c = this;
+        while (c.values == null) {
+            if (c.key == k) {
+                return c.value;
+            }
+            c = c.parent;
+        }
+        return c.values[k.ordinal()];
+    }
+
+    /**
+     * Returns a new array of all values in this context.
+     */
+    private Object[] flatten() {
+        Context c = this;
+        while (c.values == null) {
+            c = c.parent;
+        }
+        final Object[] result = c.values.clone();
+        final boolean[] isSet = new boolean[Key.SIZE];
+        for (c = this; c.values == null; c = c.parent) {
+            final int i = c.key.ordinal();
+            if (!isSet[i]) {
+                isSet[i] = true;
+                result[i] = c.value;
+            }
+        }
+        return result;
     }
 
     @Override
@@ -133,17 +206,17 @@ public class Context implements Map<Context.Key, Object> {
 
     @Override
     public boolean containsKey(final Object key) {
-        return key instanceof Key && values[((Key) key).ordinal()] != null;
+        return key instanceof Key && lookup((Key) key) != null;
     }
 
     @Override
     public boolean containsValue(final Object value) {
-        return Stream.of(values).anyMatch(v -> v == null ? value == null : v.equals(value));
+        return Stream.of(flatten()).anyMatch(v -> v == null ? value == null : v.equals(value));
     }
 
     @Override
     public Object get(final Object key) {
-        return key instanceof Key ? values[((Key) key).ordinal()] : null;
+        return key instanceof Key ? lookup((Key) key) : null;
     }
 
     @Override
@@ -168,12 +241,12 @@ public class Context implements Map<Context.Key, Object> {
 
     @Override
     public Set<Key> keySet() {
-        return Stream.of(Key.ALL).filter(k -> values[k.ordinal()] != null).collect(Collectors.toSet());
+        return Stream.of(Key.ALL).filter(k -> lookup(k) != null).collect(Collectors.toSet());
     }
 
     @Override
     public Collection<Object> values() {
-        return Stream.of(values).filter(Objects::nonNull).collect(Collectors.toSet());
+        return Stream.of(flatten()).filter(Objects::nonNull).collect(Collectors.toSet());
     }
 
     @Override
@@ -182,7 +255,7 @@ public class Context implements Map<Context.Key, Object> {
     }
 
     private Map.Entry<Key, Object> toEntry(final Key k) {
-        final Object v = values[k.ordinal()];
+        final Object v = lookup(k);
         return v != null ? new AbstractMap.SimpleEntry<Key, Object>(k, v) : null;
     }
 
@@ -243,4 +316,11 @@ public class Context implements Map<Context.Key, Object> {
     public ObjectInserter getInserter() {
         return (ObjectInserter) get(Key.inserter);
     }
+
+    /**
+     * Returns the reader in the context.
+     */
+    public ObjectReader getReader() {
+        return (ObjectReader) get(Key.reader);
+    }
 }
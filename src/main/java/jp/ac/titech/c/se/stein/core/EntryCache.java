@@ -0,0 +1,189 @@
+package jp.ac.titech.c.se.stein.core;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded entry-to-entries mapping.
+ *
+ * Entries are evicted in least-recently-used order. Once the cache is full,
+ * blob entries are evicted while they take more than half of the capacity, and
+ * tree entries are evicted otherwise: trees are preferred, since a hit on a
+ * tree saves rewriting its whole subtree, but cannot push out all the blobs.
+ *
+ * This map is thread-safe. The entries are split into segments by their hash
+ * codes, each of which is locked and evicted separately, so that concurrent
+ * lookups of different segments do not contend.
+ */
+public class EntryCache extends AbstractMap<EntrySet.Entry, EntrySet> {
+    /**
+     * The maximum number of the segments.
+     */
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * The minimum capacity of a segment.
+     */
+    private static final int MIN_SEGMENT_CAPACITY = 256;
+
+    protected final int capacity;
+
+    private final Segment[] segments;
+
+    public EntryCache(final int capacity) {
+        this.capacity = capacity;
+        final int n = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, capacity / MIN_SEGMENT_CAPACITY)));
+        this.segments = new Segment[n];
+        for (int i = 0; i < n; i++) {
+            // distributes the remainder of the capacity
+            segments[i] = new Segment(capacity / n + (i < capacity % n ? 1 : 0));
+        }
+    }
+
+    /**
+     * A segment of the cache.
+     */
+    private static class Segment {
+        final int capacity;
+
+        final Map<EntrySet.Entry, EntrySet> trees = new LinkedHashMap<>(16, 0.75f, true);
+
+        final Map<EntrySet.Entry, EntrySet> blobs = new LinkedHashMap<>(16, 0.75f, true);
+
+        long evictionCount = 0;
+
+        Segment(final int capacity) {
+            this.capacity = capacity;
+        }
+
+        /**
+         * Evicts the least-recently-used entries until the size fits the capacity.
+         */
+        void evict() {
+            while (trees.size() + blobs.size() > capacity) {
+                final Map<EntrySet.Entry, EntrySet> victims = blobs.size() > capacity / 2 || trees.isEmpty() ? blobs : trees;
+                final Iterator<EntrySet.Entry> it = victims.keySet().iterator();
+                it.next();
+                it.remove();
+                evictionCount++;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of the evicted entries so far.
+     */
+    public long getEvictionCount() {
+        long result = 0;
+        for (final Segment s : segments) {
+            synchronized (s) {
+                result += s.evictionCount;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public EntrySet get(final Object key) {
+        final Segment s = segment(key);
+        if (s == null) {
+            return null;
+        }
+        synchronized (s) {
+            return select(s, key).get(key);
+        }
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        final Segment s = segment(key);
+        if (s == null) {
+            return false;
+        }
+        synchronized (s) {
+            return select(s, key).containsKey(key);
+        }
+    }
+
+    @Override
+    public EntrySet put(final EntrySet.Entry key, final EntrySet value) {
+        final Segment s = segment(key);
+        synchronized (s) {
+            final EntrySet result = select(s, key).put(key, value);
+            s.evict();
+            return result;
+        }
+    }
+
+    @Override
+    public EntrySet remove(final Object key) {
+        final Segment s = segment(key);
+        if (s == null) {
+            return null;
+        }
+        synchronized (s) {
+            return select(s, key).remove(key);
+        }
+    }
+
+    @Override
+    public int size() {
+        int result = 0;
+        for (final Segment s : segments) {
+            synchronized (s) {
+                result += s.trees.size() + s.blobs.size();
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void clear() {
+        for (final Segment s : segments) {
+            synchronized (s) {
+                s.trees.clear();
+                s.blobs.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the entries.
+     */
+    @Override
+    public Set<Map.Entry<EntrySet.Entry, EntrySet>> entrySet() {
+        final Map<EntrySet.Entry, EntrySet> result = new HashMap<>();
+        for (final Segment s : segments) {
+            synchronized (s) {
+                result.putAll(s.trees);
+                result.putAll(s.blobs);
+            }
+        }
+        return Collections.unmodifiableMap(result).entrySet();
+    }
+
+    /**
+     * Selects the segment for the given key, which is either an entry or a
+     * tree cursor. Returns null for other keys.
+     */
+    private Segment segment(final Object key) {
+        if (!(key instanceof EntrySet.Entry) && !(key instanceof TreeCursor)) {
+            return null;
+        }
+        final int h = key.hashCode();
+        return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+    }
+
+    /**
+     * Selects the map of the segment for the given key.
+     */
+    private static Map<EntrySet.Entry, EntrySet> select(final Segment s, final Object key) {
+        final boolean isTree = key instanceof EntrySet.Entry ? ((EntrySet.Entry) key).isTree() : ((TreeCursor) key).isTree();
+        return isTree ? s.trees : s.blobs;
+    }
+}
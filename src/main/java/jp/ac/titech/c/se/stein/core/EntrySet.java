@@ -69,6 +69,9 @@ public interface EntrySet {
 
         @Override
         public boolean equals(final Object obj) {
+            if (obj instanceof TreeCursor) {
+                return obj.equals(this);
+            }
             if (!(obj instanceof Entry)) {
                 return false;
             }
@@ -0,0 +1,300 @@
+package jp.ac.titech.c.se.stein.core;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.util.IO;
+import org.eclipse.jgit.util.sha1.SHA1;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jp.ac.titech.c.se.stein.core.EntrySet.Entry;
+import jp.ac.titech.c.se.stein.core.EntrySet.EntryList;
+
+/**
+ * A persistent entry-to-entries mapping shared across runs.
+ *
+ * The mappings are appended to a single log file, each as a record of the
+ * hash of its key, the length of its value, and the value. The offsets of the
+ * records are indexed in memory on opening the log. Since the stored entries
+ * refer to objects that may not have been written out yet, the mappings are
+ * kept pending until the caller writes them out by {@link #write(Map, Context)}
+ * after flushing the objects.
+ */
+public class EntryStore {
+    private static final Logger log = LoggerFactory.getLogger(EntryStore.class);
+
+    private static final byte EMPTY = 0, SINGLE = 1, LIST = 2;
+
+    /**
+     * The size of the hash and the length preceding each value.
+     */
+    private static final int RECORD_HEADER_SIZE = Constants.OBJECT_ID_LENGTH + 4;
+
+    protected final Path file;
+
+    private final Map<Entry, EntrySet> pending = new ConcurrentHashMap<>();
+
+    /**
+     * The offsets of the records, keyed by the hashes of their keys.
+     */
+    private final Map<ObjectId, Long> offsets = new ConcurrentHashMap<>();
+
+    private volatile FileChannel channel;
+
+    /**
+     * The size of the log, i.e., the offset of the next record.
+     */
+    private long size;
+
+    public EntryStore(final File directory) {
+        this.file = new File(directory, "log").toPath();
+        log.debug("Entry store: {}", file);
+    }
+
+    /**
+     * Loads the stored entries for the given entry. Returns null if not stored.
+     */
+    public EntrySet load(final Entry entry, final Context c) {
+        final EntrySet unwritten = pending.get(entry);
+        if (unwritten != null) {
+            return unwritten;
+        }
+        final FileChannel ch = getChannel(c);
+        final Long offset = offsets.get(hash(entry));
+        if (offset == null) {
+            return null;
+        }
+        try {
+            final int length = read(ch, offset + Constants.OBJECT_ID_LENGTH, 4).getInt();
+            final ByteBuffer value = read(ch, offset + RECORD_HEADER_SIZE, length);
+            return readEntrySet(new DataInputStream(new ByteArrayInputStream(value.array())));
+        } catch (final IOException e) {
+            log.warn("Broken entry store record at {}: {} ({})", offset, file, c);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the entries for the given entry. The mapping is kept pending
+     * until written out.
+     */
+    public void store(final Entry entry, final EntrySet value, final Context c) {
+        pending.put(entry, value);
+    }
+
+    /**
+     * Returns the number of the pending mappings.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Removes the pending mappings and returns them.
+     */
+    public Map<Entry, EntrySet> takePending() {
+        final Map<Entry, EntrySet> result = new HashMap<>();
+        for (final Entry key : pending.keySet()) {
+            final EntrySet value = pending.remove(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes out the given mappings. The objects referred by them must have
+     * been written out beforehand.
+     */
+    public synchronized void write(final Map<Entry, EntrySet> mappings, final Context c) {
+        final FileChannel ch = getChannel(c);
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(buf);
+        final Map<ObjectId, Long> written = new HashMap<>();
+        Try.io(c, () -> {
+            final ByteArrayOutputStream value = new ByteArrayOutputStream();
+            for (final Map.Entry<Entry, EntrySet> e : mappings.entrySet()) {
+                final ObjectId key = hash(e.getKey());
+                if (offsets.containsKey(key) || written.containsKey(key)) {
+                    continue;
+                }
+                value.reset();
+                writeEntrySet(new DataOutputStream(value), e.getValue());
+                written.put(key, size + out.size());
+                key.copyRawTo(out);
+                out.writeInt(value.size());
+                value.writeTo(out);
+            }
+            ch.write(ByteBuffer.wrap(buf.toByteArray()), size);
+            ch.force(false);
+        });
+        // the records become visible only after written
+        size += buf.size();
+        offsets.putAll(written);
+        log.debug("Wrote {} entries to the store", written.size());
+    }
+
+    /**
+     * Releases the log file.
+     */
+    public synchronized void close() {
+        if (channel != null) {
+            Try.io(channel::close);
+            channel = null;
+        }
+    }
+
+    /**
+     * Returns the channel of the log file, opening it if not yet.
+     */
+    private FileChannel getChannel(final Context c) {
+        FileChannel result = channel;
+        if (result == null) {
+            synchronized (this) {
+                result = channel;
+                if (result == null) {
+                    result = channel = Try.io(c, this::open);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Opens the log file and indexes its records. A broken record at the end,
+     * e.g., left by a crash, is truncated.
+     */
+    private FileChannel open() throws IOException {
+        Files.createDirectories(file.getParent());
+        final FileChannel result = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            final long length = result.size();
+            try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+                while (length - size >= RECORD_HEADER_SIZE) {
+                    in.readFully(raw);
+                    final int n = in.readInt();
+                    if (n < 0 || length - size - RECORD_HEADER_SIZE < n) {
+                        break;
+                    }
+                    IO.skipFully(in, n);
+                    offsets.put(ObjectId.fromRaw(raw), size);
+                    size += RECORD_HEADER_SIZE + n;
+                }
+            }
+            if (size < length) {
+                log.warn("Truncating a broken record of the entry store at {}: {}", size, file);
+                result.truncate(size);
+            }
+        } catch (final IOException e) {
+            result.close();
+            throw e;
+        }
+        log.debug("Loaded {} entries from the store", offsets.size());
+        return result;
+    }
+
+    /**
+     * Reads the given number of bytes at the given position.
+     */
+    private static ByteBuffer read(final FileChannel ch, final long position, final int length) throws IOException {
+        final ByteBuffer result = ByteBuffer.allocate(length);
+        while (result.hasRemaining()) {
+            if (ch.read(result, position + result.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Computes the hash of an entry.
+     */
+    protected static ObjectId hash(final Entry entry) {
+        final SHA1 md = SHA1.newInstance();
+        final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        entry.id.copyRawTo(raw, 0);
+        md.update(raw);
+        md.update(Integer.toString(entry.mode.getBits()).getBytes(UTF_8));
+        md.update((byte) 0);
+        md.update(entry.name.getBytes(UTF_8));
+        if (entry.directory != null) {
+            md.update((byte) 0);
+            md.update(entry.directory.getBytes(UTF_8));
+        }
+        return md.toObjectId();
+    }
+
+    protected static void writeEntrySet(final DataOutputStream out, final EntrySet value) throws IOException {
+        if (value instanceof Entry) {
+            out.writeByte(SINGLE);
+            writeEntry(out, (Entry) value);
+        } else if (value instanceof EntryList) {
+            final List<Entry> entries = ((EntryList) value).entries();
+            out.writeByte(LIST);
+            out.writeInt(entries.size());
+            for (final Entry e : entries) {
+                writeEntry(out, e);
+            }
+        } else {
+            out.writeByte(EMPTY);
+        }
+    }
+
+    protected static EntrySet readEntrySet(final DataInputStream in) throws IOException {
+        switch (in.readByte()) {
+        case SINGLE:
+            return readEntry(in);
+        case LIST:
+            final EntryList result = new EntryList();
+            for (int i = in.readInt(); i > 0; i--) {
+                result.add(readEntry(in));
+            }
+            return result;
+        default:
+            return EntrySet.EMPTY;
+        }
+    }
+
+    protected static void writeEntry(final DataOutputStream out, final Entry entry) throws IOException {
+        out.writeInt(entry.mode.getBits());
+        out.writeUTF(entry.name);
+        entry.id.copyRawTo(out);
+        out.writeBoolean(entry.directory != null);
+        if (entry.directory != null) {
+            out.writeUTF(entry.directory);
+        }
+    }
+
+    protected static Entry readEntry(final DataInputStream in) throws IOException {
+        final FileMode mode = FileMode.fromBits(in.readInt());
+        final String name = in.readUTF();
+        final byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+        in.readFully(raw);
+        final String directory = in.readBoolean() ? in.readUTF() : null;
+        return new Entry(mode, name, ObjectId.fromRaw(raw), directory);
+    }
+}
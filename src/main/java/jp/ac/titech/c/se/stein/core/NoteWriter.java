@@ -0,0 +1,110 @@
+package jp.ac.titech.c.se.stein.core;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.notes.NoteMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A writer of notes.
+ *
+ * Every time a number of notes are added, the notes tree is written out and
+ * reloaded lazily, so that only the fanout buckets touched afterwards are kept
+ * in memory. The reader used for reloading is released by {@link #close()}.
+ * This writer is thread-safe.
+ */
+public class NoteWriter {
+    private static final Logger log = LoggerFactory.getLogger(NoteWriter.class);
+
+    protected static final int FLUSH_INTERVAL = 65536;
+
+    protected final RepositoryAccess target;
+
+    private NoteMap notes;
+
+    private ObjectReader reader;
+
+    private int unflushedCount = 0;
+
+    public NoteWriter(final RepositoryAccess target, final NoteMap notes) {
+        this.target = target;
+        this.notes = notes;
+    }
+
+    /**
+     * Returns the notes.
+     */
+    public synchronized NoteMap getNoteMap() {
+        return notes;
+    }
+
+    /**
+     * Tests whether no notes exist.
+     */
+    public synchronized boolean isEmpty() {
+        return !notes.iterator().hasNext();
+    }
+
+    /**
+     * Adds a note.
+     */
+    public void add(final ObjectId commitId, final String note, final Context c) {
+        final ObjectId blobId = target.writeBlob(note.getBytes(), null, c);
+        synchronized (this) {
+            Try.io(c, () -> notes.set(commitId, blobId));
+            if (++unflushedCount >= FLUSH_INTERVAL) {
+                flush(c);
+            }
+        }
+    }
+
+    /**
+     * Runs the given function while no notes can be added.
+     */
+    public synchronized void runLocked(final Runnable f) {
+        f.run();
+    }
+
+    /**
+     * Writes the notes tree. Returns its id.
+     */
+    public synchronized ObjectId writeTree(final Context c) {
+        return target.isDryRunning ? ObjectId.zeroId() : target.insert(ins -> notes.writeTree(ins), c);
+    }
+
+    /**
+     * Writes out the notes tree and reloads it lazily, releasing the notes
+     * held in memory.
+     */
+    protected void flush(final Context c) {
+        unflushedCount = 0;
+        if (target.isDryRunning) {
+            return;
+        }
+        final ObjectId treeId = writeTree(c);
+        final ObjectInserter ins = c.getInserter();
+        if (ins != null) {
+            Try.io(c, () -> ins.flush());
+        }
+        final ObjectReader newReader = target.repo.newObjectReader();
+        notes = Try.io(c, () -> NoteMap.readTree(newReader, treeId));
+        if (reader != null) {
+            reader.close();
+        }
+        reader = newReader;
+        log.debug("Flushed notes tree: {}", treeId.name());
+    }
+
+    /**
+     * Releases the reader used for reloading the notes. The notes must not
+     * be accessed afterwards.
+     */
+    public synchronized void close() {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+}
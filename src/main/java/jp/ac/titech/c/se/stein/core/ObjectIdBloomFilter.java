@@ -0,0 +1,110 @@
+package jp.ac.titech.c.se.stein.core;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+
+/**
+ * A Bloom filter of object ids.
+ *
+ * It tells whether an object is definitely absent or possibly present, using
+ * about 10 bits per object with a false positive rate of about 1%. When the
+ * filter gets full, a new one of the double capacity is stacked on it. This
+ * filter is thread-safe.
+ */
+public class ObjectIdBloomFilter {
+    private static final int BITS_PER_OBJECT = 10;
+
+    private static final int NUM_HASHES = 4;
+
+    private static final int MIN_CAPACITY = 1 << 16;
+
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+
+    private volatile Segment current;
+
+    public ObjectIdBloomFilter(final int capacity) {
+        current = new Segment(Math.max(capacity, MIN_CAPACITY));
+        segments.add(current);
+    }
+
+    /**
+     * Tests whether the given object might have been added.
+     */
+    public boolean mightContain(final AnyObjectId id) {
+        final long h1 = id.hashCode(), h2 = word(id, 8);
+        for (final Segment s : segments) {
+            if (s.mightContain(h1, h2)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds an object.
+     */
+    public void add(final AnyObjectId id) {
+        final long h1 = id.hashCode(), h2 = word(id, 8);
+        Segment s = current;
+        while (!s.add(h1, h2)) {
+            s = grow(s);
+        }
+    }
+
+    private synchronized Segment grow(final Segment full) {
+        if (current == full) {
+            current = new Segment(full.capacity * 2);
+            segments.add(current);
+        }
+        return current;
+    }
+
+    private static long word(final AnyObjectId id, final int index) {
+        return (id.getByte(index) << 24 | id.getByte(index + 1) << 16 | id.getByte(index + 2) << 8 | id.getByte(index + 3)) & 0xffffffffL;
+    }
+
+    private static class Segment {
+        final int capacity;
+
+        final long nbits;
+
+        final AtomicLongArray bits;
+
+        final AtomicInteger count = new AtomicInteger();
+
+        Segment(final int capacity) {
+            this.capacity = capacity;
+            this.bits = new AtomicLongArray((int) (((long) capacity * BITS_PER_OBJECT + 63) / 64));
+            this.nbits = bits.length() * 64L;
+        }
+
+        boolean mightContain(final long h1, final long h2) {
+            for (int i = 0; i < NUM_HASHES; i++) {
+                final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % nbits;
+                if ((bits.get((int) (bit >>> 6)) & 1L << bit) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Adds the hashes. Returns false if this segment is full.
+         */
+        boolean add(final long h1, final long h2) {
+            if (count.incrementAndGet() > capacity) {
+                return false;
+            }
+            for (int i = 0; i < NUM_HASHES; i++) {
+                final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % nbits;
+                final long mask = 1L << bit;
+                bits.accumulateAndGet((int) (bit >>> 6), mask, (a, b) -> a | b);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package jp.ac.titech.c.se.stein.core;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * A compact object-to-object mapping.
+ *
+ * Keys and values are stored as raw bytes in flat arrays with open addressing
+ * (linear probing), so that each mapping costs about 40 bytes plus the slack
+ * of the table instead of a hash node and two ObjectId objects. Removal is
+ * not supported. This map is not thread-safe.
+ */
+public class ObjectIdMap extends AbstractMap<ObjectId, ObjectId> {
+    private static final int LEN = Constants.OBJECT_ID_LENGTH;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private byte[] keys;
+
+    private byte[] values;
+
+    private boolean[] used;
+
+    private int size;
+
+    public ObjectIdMap() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(final int capacity) {
+        keys = new byte[capacity * LEN];
+        values = new byte[capacity * LEN];
+        used = new boolean[capacity];
+    }
+
+    /**
+     * Finds the slot for the given key: the slot holding the key if exists,
+     * otherwise the empty slot where the key is to be placed.
+     */
+    private int find(final AnyObjectId key) {
+        final int mask = used.length - 1;
+        int i = key.hashCode() & mask;
+        while (used[i] && key.compareTo(keys, i * LEN) != 0) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    @Override
+    public ObjectId get(final Object key) {
+        if (!(key instanceof AnyObjectId)) {
+            return null;
+        }
+        final int i = find((AnyObjectId) key);
+        return used[i] ? ObjectId.fromRaw(values, i * LEN) : null;
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return key instanceof AnyObjectId && used[find((AnyObjectId) key)];
+    }
+
+    @Override
+    public ObjectId put(final ObjectId key, final ObjectId value) {
+        final int i = find(key);
+        if (used[i]) {
+            final ObjectId old = ObjectId.fromRaw(values, i * LEN);
+            value.copyRawTo(values, i * LEN);
+            return old;
+        }
+        used[i] = true;
+        key.copyRawTo(keys, i * LEN);
+        value.copyRawTo(values, i * LEN);
+        if (++size > used.length / 4 * 3) {
+            grow();
+        }
+        return null;
+    }
+
+    /**
+     * Doubles the table size.
+     */
+    private void grow() {
+        final byte[] oldKeys = keys, oldValues = values;
+        final boolean[] oldUsed = used;
+        allocate(oldUsed.length * 2);
+        final int mask = used.length - 1;
+        for (int j = 0; j < oldUsed.length; j++) {
+            if (oldUsed[j]) {
+                int i = ObjectId.fromRaw(oldKeys, j * LEN).hashCode() & mask;
+                while (used[i]) {
+                    i = (i + 1) & mask;
+                }
+                used[i] = true;
+                System.arraycopy(oldKeys, j * LEN, keys, i * LEN, LEN);
+                System.arraycopy(oldValues, j * LEN, values, i * LEN, LEN);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /**
+     * Copies the mappings into the given array as the records of the raw key
+     * and value ids. Returns the number of the records.
+     */
+    public int copyRecordsTo(final byte[] dst) {
+        int pos = 0;
+        for (int i = 0; i < used.length; i++) {
+            if (used[i]) {
+                System.arraycopy(keys, i * LEN, dst, pos, LEN);
+                System.arraycopy(values, i * LEN, dst, pos + LEN, LEN);
+                pos += 2 * LEN;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public Set<Entry<ObjectId, ObjectId>> entrySet() {
+        return new AbstractSet<Entry<ObjectId, ObjectId>>() {
+            @Override
+            public Iterator<Entry<ObjectId, ObjectId>> iterator() {
+                return new Iterator<Entry<ObjectId, ObjectId>>() {
+                    private int next = advance(0);
+
+                    private int advance(int i) {
+                        while (i < used.length && !used[i]) {
+                            i++;
+                        }
+                        return i;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < used.length;
+                    }
+
+                    @Override
+                    public Entry<ObjectId, ObjectId> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        final int i = next;
+                        next = advance(i + 1);
+                        return new SimpleImmutableEntry<>(ObjectId.fromRaw(keys, i * LEN), ObjectId.fromRaw(values, i * LEN));
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
@@ -0,0 +1,200 @@
+package jp.ac.titech.c.se.stein.core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.internal.storage.file.PackIndexWriter;
+import org.eclipse.jgit.internal.storage.pack.DeltaIndex;
+import org.eclipse.jgit.internal.storage.pack.PackWriter;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectDatabase;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.transport.PackedObjectInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An adapter of a file-based object database, which is the only class
+ * depending on the internal API of JGit.
+ *
+ * The internal API may change in any release of JGit, so the version of JGit
+ * is pinned in the build. If it is not available anyway, {@link #of(Repository)}
+ * returns null, and the callers fall back to the public API: objects are
+ * written as loose objects and copied one by one, and no object filter is used.
+ */
+public class PackStorage {
+    private static final Logger log = LoggerFactory.getLogger(PackStorage.class);
+
+    private final ObjectDirectory db;
+
+    protected PackStorage(final ObjectDirectory db) {
+        this.db = db;
+    }
+
+    /**
+     * Returns the adapter of the object database of the given repository, or
+     * null if it is not file-based or the internal API is not available.
+     */
+    public static PackStorage of(final Repository repo) {
+        try {
+            final ObjectDatabase db = repo.getObjectDatabase();
+            return db instanceof ObjectDirectory ? new PackStorage((ObjectDirectory) db) : null;
+        } catch (final LinkageError e) {
+            log.warn("The internal API of JGit is not available: {}", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the directory of the pack files.
+     */
+    public File getPackDirectory() {
+        return new File(db.getDirectory(), "pack");
+    }
+
+    /**
+     * Tests whether the object database has alternates.
+     */
+    public boolean hasAlternates() {
+        return new File(db.getDirectory(), "info/alternates").length() > 0;
+    }
+
+    /**
+     * Tests whether the object database has the given object.
+     */
+    public boolean has(final AnyObjectId id) {
+        return db.has(id);
+    }
+
+    public ObjectInserter newInserter() {
+        return db.newInserter();
+    }
+
+    public ObjectReader newReader() {
+        return db.newReader();
+    }
+
+    /**
+     * Registers a completed pack file to the object database. Its index is
+     * loaded at once, so that the objects stay found even after the pack file
+     * is replaced by another one containing them.
+     */
+    public void openPack(final File pack) throws IOException {
+        db.openPack(pack).getIndex();
+    }
+
+    /**
+     * Writes a pack index of version 2 for the given objects, which must be
+     * sorted by their ids.
+     */
+    public static void writeIndex(final OutputStream out, final List<PackedObjectInfo> objects, final byte[] checksum) throws IOException {
+        PackIndexWriter.createVersion(out, 2).write(objects, checksum);
+    }
+
+    /**
+     * Encodes a delta from the base to the target. Returns null if the delta
+     * exceeds the given size.
+     */
+    public static byte[] encodeDelta(final byte[] base, final byte[] target, final int limit) throws IOException {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        return new DeltaIndex(base).encode(buf, target, limit) ? buf.toByteArray() : null;
+    }
+
+    /**
+     * Writes the given objects of another repository into a pack file, reusing
+     * their stored representations. Returns the name of the pack file.
+     */
+    public String writePack(final Repository source, final Collection<ObjectId> ids) throws IOException {
+        final File dir = getPackDirectory();
+        final PackConfig config = new PackConfig(source);
+        config.setDeltaCompress(false);
+        try (final PackWriter writer = new PackWriter(config, source.newObjectReader());
+             final RevWalk walk = new RevWalk(source)) {
+            final List<RevObject> objects = new ArrayList<>(ids.size());
+            for (final ObjectId id : ids) {
+                objects.add(walk.lookupBlob(id));
+            }
+            writer.preparePack(objects.iterator());
+            Files.createDirectories(dir.toPath());
+            final File pack = File.createTempFile("incoming_", ".pack", dir);
+            final File index = File.createTempFile("incoming_", ".idx", dir);
+            try {
+                try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(pack))) {
+                    writer.writePack(NullProgressMonitor.INSTANCE, NullProgressMonitor.INSTANCE, out);
+                }
+                try (final OutputStream out = new BufferedOutputStream(new FileOutputStream(index))) {
+                    writer.writeIndex(out);
+                }
+                final String name = "pack-" + writer.computeName().name();
+                Files.move(pack.toPath(), new File(dir, name + ".pack").toPath(), StandardCopyOption.ATOMIC_MOVE);
+                Files.move(index.toPath(), new File(dir, name + ".idx").toPath(), StandardCopyOption.ATOMIC_MOVE);
+                return name;
+            } finally {
+                Files.deleteIfExists(pack.toPath());
+                Files.deleteIfExists(index.toPath());
+            }
+        }
+    }
+
+    /**
+     * Builds a filter of the objects in the pack indexes and the loose objects.
+     */
+    public ObjectIdBloomFilter buildObjectFilter() throws IOException {
+        final File dir = db.getDirectory();
+        long count = 0;
+        final File[] indexFiles = getPackDirectory().listFiles((d, name) -> name.endsWith(".idx"));
+        for (final File file : indexFiles != null ? indexFiles : new File[0]) {
+            count += readObjectCount(file);
+        }
+        final ObjectIdBloomFilter result = new ObjectIdBloomFilter((int) Math.min(count * 2, Integer.MAX_VALUE / 16));
+        // the indexes are loaded one by one so as not to hold all of them at once
+        for (final File file : indexFiles != null ? indexFiles : new File[0]) {
+            for (final PackIndex.MutableEntry e : PackIndex.open(file)) {
+                result.add(e.toObjectId());
+            }
+        }
+        final File[] fanouts = dir.listFiles((d, name) -> name.length() == 2);
+        for (final File fanout : fanouts != null ? fanouts : new File[0]) {
+            final String[] names = fanout.list();
+            for (final String name : names != null ? names : new String[0]) {
+                if (ObjectId.isId(fanout.getName() + name)) {
+                    result.add(ObjectId.fromString(fanout.getName() + name));
+                    count++;
+                }
+            }
+        }
+        log.debug("Built the object filter of {} with {} objects", dir, count);
+        return result;
+    }
+
+    /**
+     * Reads the number of the objects from the last entry of the fan-out
+     * table of a pack index, without loading the whole index.
+     */
+    private static long readObjectCount(final File file) throws IOException {
+        try (final RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            final boolean isVersion2 = in.readInt() == 0xff744f63; // "\377tOc"
+            in.seek((isVersion2 ? 8 : 0) + 255 * 4);
+            return in.readInt() & 0xffffffffL;
+        }
+    }
+}
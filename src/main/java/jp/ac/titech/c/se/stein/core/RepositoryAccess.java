@@ -1,19 +1,30 @@
 package jp.ac.titech.c.se.stein.core;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.BatchRefUpdate;
 import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.GpgSignature;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ObjectStream;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefRename;
@@ -22,15 +33,17 @@ import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.lib.TagBuilder;
 import org.eclipse.jgit.lib.TreeFormatter;
 import org.eclipse.jgit.notes.NoteMap;
-import org.eclipse.jgit.revwalk.RevObject;
+import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevSort;
 import org.eclipse.jgit.revwalk.RevTag;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.transport.ReceiveCommand;
+import org.eclipse.jgit.util.TemporaryBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import jp.ac.titech.c.se.stein.core.EntrySet.Entry;
+import jp.ac.titech.c.se.stein.core.Try.IOThrowableConsumer;
 import jp.ac.titech.c.se.stein.core.Try.IOThrowableFunction;
 
 public class RepositoryAccess {
@@ -40,17 +53,57 @@ public class RepositoryAccess {
 
     protected final Repository repo;
 
-    protected final NoteMap defaultNotes = NoteMap.newEmptyMap();
+    /**
+     * The adapter of the object database, or null if not available.
+     */
+    protected final PackStorage storage;
+
+    protected NoteWriter defaultNotes = new NoteWriter(this, NoteMap.newEmptyMap());
 
     protected boolean isDryRunning = false;
 
+    protected long packThreshold = 0;
+
+    /**
+     * Ref changes to be applied in a batch, or null if not batching.
+     * A deletion is represented by the zero id.
+     */
+    protected Map<String, ObjectId> refBatch;
+
+    /**
+     * Filter of the objects in the repository, built on demand.
+     */
+    private volatile ObjectIdBloomFilter objectFilter;
+
+    /**
+     * Readers generated by this object.
+     */
+    protected final Set<ObjectReader> readers = ConcurrentHashMap.newKeySet();
+
     public void setDryRunning(final boolean isDryRunning) {
         this.isDryRunning = isDryRunning;
         log.debug("Set the dry running mode of {} to {}", repo.getDirectory(), isDryRunning);
     }
 
+    /**
+     * Sets the size of objects written into a pack file. Objects are written
+     * as loose objects if it is not positive.
+     */
+    public void setPackThreshold(final long packThreshold) {
+        this.packThreshold = packThreshold;
+        log.debug("Set the pack threshold of {} to {}", repo.getDirectory(), packThreshold);
+    }
+
     public RepositoryAccess(final Repository repo) {
         this.repo = repo;
+        this.storage = PackStorage.of(repo);
+    }
+
+    /**
+     * Returns the .git directory of the repository.
+     */
+    public File getDirectory() {
+        return repo.getDirectory();
     }
 
     // walk
@@ -86,28 +139,74 @@ public class RepositoryAccess {
      * Specifies the type of the given object.
      */
     public int getObjectType(final ObjectId id, final Context c) {
-        try (final RevWalk walk = new RevWalk(repo)) {
-            final RevObject object = Try.io(c, () -> walk.parseAny(id));
-            return object.getType();
-        }
+        return read(reader -> reader.open(id).getType(), c);
     }
 
     /**
      * Extracts a rev object.
      */
     public AnyObjectId parseAny(final ObjectId id, final Context c) {
-        try (final RevWalk walk = new RevWalk(repo)) {
-            return Try.io(c, () -> walk.parseAny(id));
-        }
+        return read(reader -> {
+            try (final RevWalk walk = new RevWalk(reader)) {
+                return walk.parseAny(id);
+            }
+        }, c);
     }
 
     /**
      * Extracts a tag object.
      */
     public RevTag parseTag(final ObjectId id, final Context c) {
-        try (final RevWalk walk = new RevWalk(repo)) {
-            return Try.io(c, () -> walk.parseTag(id));
+        return read(reader -> {
+            try (final RevWalk walk = new RevWalk(reader)) {
+                return walk.parseTag(id);
+            }
+        }, c);
+    }
+
+    /**
+     * Parses a commit object including its body.
+     */
+    public RevCommit parseCommit(final ObjectId id, final Context c) {
+        return read(reader -> {
+            try (final RevWalk walk = new RevWalk(reader)) {
+                return walk.parseCommit(id);
+            }
+        }, c);
+    }
+
+    /**
+     * Tests whether the given object exists.
+     */
+    public boolean hasObject(final ObjectId id, final Context c) {
+        final ObjectIdBloomFilter filter = getObjectFilter(c);
+        if (filter != null && !filter.mightContain(id)) {
+            return false;
         }
+        return Try.io(c, () -> repo.getObjectDatabase().has(id));
+    }
+
+    /**
+     * Returns the filter of the objects in the repository. It is built from
+     * the pack indexes and the loose objects on the first call, and the
+     * objects written afterwards are added to it. Returns null if the
+     * repository is not file-based, or if it borrows objects from alternates,
+     * which the filter does not cover.
+     *
+     * The filter is built only on demand, i.e., on testing the existence of
+     * objects or on writing objects into packs.
+     */
+    protected ObjectIdBloomFilter getObjectFilter(final Context c) {
+        ObjectIdBloomFilter result = objectFilter;
+        if (result == null && storage != null && !storage.hasAlternates()) {
+            synchronized (this) {
+                result = objectFilter;
+                if (result == null) {
+                    objectFilter = result = Try.io(c, storage::buildObjectFilter);
+                }
+            }
+        }
+        return result;
     }
 
     /**
@@ -125,18 +224,21 @@ public class RepositoryAccess {
      */
     public List<Entry> readTree(final ObjectId treeId, final String path, final Context c) {
         final List<Entry> result = new ArrayList<>();
-        Try.io(c, () -> {
-            try (final TreeWalk walk = new TreeWalk(repo)) {
-                walk.addTree(treeId);
-                walk.setRecursive(false);
-                while (walk.next()) {
-                    result.add(new Entry(walk.getFileMode(), walk.getNameString(), walk.getObjectId(0), path));
-                }
-            }
-        });
+        final TreeCursor cursor = openTree(treeId, path, c);
+        while (cursor.next()) {
+            result.add(cursor.getEntry());
+        }
         return result;
     }
 
+    /**
+     * Opens a cursor over the entries of a tree object.
+     */
+    public TreeCursor openTree(final ObjectId treeId, final String path, final Context c) {
+        final byte[] raw = read(reader -> reader.open(treeId, Constants.OBJ_TREE).getCachedBytes(Integer.MAX_VALUE), c);
+        return new TreeCursor(raw, path);
+    }
+
     /**
      * Writes tree entries to a tree object.
      */
@@ -149,32 +251,161 @@ public class RepositoryAccess {
     }
 
     /**
-     * Sorts tree entries.
+     * Sorts tree entries. When an entry occurs twice, the latter one is taken.
      */
     public Collection<Entry> sortEntries(final Collection<Entry> entries, final Context c) {
-        final SortedMap<String, Entry> map = new TreeMap<>();
+        if (isSorted(entries)) {
+            // the common case: unchanged names in the order of the original tree
+            return entries;
+        }
+        final List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(RepositoryAccess::compareEntries);
+        final List<Entry> result = new ArrayList<>(sorted.size());
+        for (final Entry e : sorted) {
+            final int last = result.size() - 1;
+            if (last >= 0 && compareEntries(result.get(last), e) == 0) {
+                log.warn("Entry occurred twice: {} (found: {}, new: {}, {})", e.getPath(), result.get(last).id.name(), e.id.name(), c);
+                result.set(last, e);
+            } else {
+                result.add(e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tests whether the given entries are sorted and have no duplicates.
+     */
+    protected static boolean isSorted(final Collection<Entry> entries) {
+        Entry prev = null;
         for (final Entry e : entries) {
-            final String key = e.name + (e.isTree() ? "/" : "");
-            if (map.containsKey(key)) {
-                log.warn("Entry occurred twice: {} (found: {}, new: {}, {})", e.getPath(), map.get(key).id.name(), e.id.name(), c);
+            if (prev != null && compareEntries(prev, e) >= 0) {
+                return false;
+            }
+            prev = e;
+        }
+        return true;
+    }
+
+    /**
+     * Compares tree entries in the order of Git, i.e., by the UTF-8 bytes of
+     * their names, where the name of a tree is followed by "/".
+     */
+    protected static int compareEntries(final Entry e1, final Entry e2) {
+        final String n1 = e1.name, n2 = e2.name;
+        final int len1 = n1.length(), len2 = n2.length();
+        int i = 0;
+        while (i < len1 && i < len2) {
+            // the order of code points is the same as the one of UTF-8 bytes
+            final int c1 = n1.codePointAt(i), c2 = n2.codePointAt(i);
+            if (c1 != c2) {
+                return c1 - c2;
             }
-            map.put(key, e);
+            i += Character.charCount(c1);
         }
-        return map.values();
+        final int c1 = i < len1 ? n1.codePointAt(i) : e1.isTree() ? '/' : -1;
+        final int c2 = i < len2 ? n2.codePointAt(i) : e2.isTree() ? '/' : -1;
+        return c1 - c2;
     }
 
     /**
      * Reads a blob object.
      */
     public byte[] readBlob(final ObjectId blobId, final Context c) {
-        return Try.io(c, () -> repo.getObjectDatabase().open(blobId, Constants.OBJ_BLOB).getBytes());
+        return read(reader -> reader.open(blobId, Constants.OBJ_BLOB).getBytes(), c);
     }
 
     /**
-     * Writes data to a blob object.
+     * Reads a blob object as a stream, which also provides the size of the blob.
+     */
+    public <R> R readBlob(final ObjectId blobId, final IOThrowableFunction<ObjectStream, R> f, final Context c) {
+        return read(reader -> {
+            try (final ObjectStream in = reader.open(blobId, Constants.OBJ_BLOB).openStream()) {
+                return f.apply(in);
+            }
+        }, c);
+    }
+
+    /**
+     * Writes data to a blob object. The path of the entry in the context is
+     * used as the delta hint.
      */
     public ObjectId writeBlob(final byte[] data, final Context c) {
-        return insert(ins -> isDryRunning ? ins.idFor(Constants.OBJ_BLOB, data) : ins.insert(Constants.OBJ_BLOB, data), c);
+        final Entry entry = c.getEntry();
+        return writeBlob(data, entry != null && c.getPath() != null ? c.getPath() + "/" + entry.name : null, c);
+    }
+
+    /**
+     * Writes data to a blob object. When objects are written into pack files,
+     * the blob may be stored as a delta against the blob written last time
+     * for the same path.
+     */
+    public ObjectId writeBlob(final byte[] data, final String path, final Context c) {
+        return insert(ins -> {
+            if (isDryRunning) {
+                return ins.idFor(Constants.OBJ_BLOB, data);
+            } else if (path != null && ins instanceof RollingPackInserter) {
+                return ((RollingPackInserter) ins).insert(Constants.OBJ_BLOB, data, path);
+            } else {
+                return ins.insert(Constants.OBJ_BLOB, data);
+            }
+        }, c);
+    }
+
+    /**
+     * Writes data from a stream to a blob object.
+     */
+    public ObjectId writeBlob(final long length, final InputStream in, final Context c) {
+        return insert(ins -> isDryRunning ? ins.idFor(Constants.OBJ_BLOB, length, in) : ins.insert(Constants.OBJ_BLOB, length, in), c);
+    }
+
+    /**
+     * Copies blob objects from another repository. The objects are written in a
+     * pack reusing their stored representations in the source repository, so
+     * that they are neither inflated nor deflated again.
+     */
+    public void copyBlobs(final RepositoryAccess source, final Collection<ObjectId> ids, final Context c) {
+        if (isDryRunning || ids.isEmpty()) {
+            return;
+        }
+        if (storage == null) {
+            for (final ObjectId id : ids) {
+                source.readBlob(id, in -> writeBlob(in.getSize(), in, c), c);
+            }
+            return;
+        }
+        Try.io(c, () -> {
+            final String name = storage.writePack(source.repo, ids);
+            log.debug("Copied {} blobs into {}", ids.size(), name);
+            final ObjectIdBloomFilter filter = objectFilter;
+            if (filter != null) {
+                ids.forEach(filter::add);
+            }
+        });
+    }
+
+    /**
+     * Writes data given to an output stream to a blob object. Large data is
+     * spooled to a temporary file instead of being held in memory.
+     */
+    public ObjectId writeBlob(final IOThrowableConsumer<OutputStream> f, final Context c) {
+        final TemporaryBuffer buffer = new TemporaryBuffer.LocalFile(null);
+        try {
+            Try.io(c, () -> {
+                try {
+                    f.accept(buffer);
+                } finally {
+                    buffer.close();
+                }
+            });
+            return Try.io(c, () -> {
+                try (final InputStream in = buffer.openInputStream()) {
+                    return writeBlob(buffer.length(), in, c);
+                }
+            });
+        } finally {
+            buffer.destroy();
+        }
     }
 
     /**
@@ -205,7 +436,9 @@ public class RepositoryAccess {
      * Add a note to the default notes.
      */
     public void addNote(final ObjectId commitId, final String note, final Context c) {
-        addNote(defaultNotes, commitId, note, c);
+        if (note != null) {
+            defaultNotes.add(commitId, note, c);
+        }
     }
 
     /**
@@ -214,7 +447,41 @@ public class RepositoryAccess {
     public void addNote(final NoteMap notes, final ObjectId commitId, final String note, final Context c) {
         if (note != null) {
             final ObjectId blob = writeBlob(note.getBytes(), c);
-            Try.io(() -> notes.set(commitId, blob));
+            // notes can be added from multiple threads in parallel mode
+            synchronized (notes) {
+                Try.io(() -> notes.set(commitId, blob));
+            }
+        }
+    }
+
+    /**
+     * Returns the default notes.
+     */
+    public NoteMap getNotes() {
+        return defaultNotes.getNoteMap();
+    }
+
+    /**
+     * Loads the default notes from the notes ref, if exists.
+     */
+    public void loadNotes(final Context c) {
+        defaultNotes.close();
+        defaultNotes = new NoteWriter(this, readNotes(Constants.R_NOTES_COMMITS, c));
+    }
+
+    /**
+     * Reads notes from the given ref. An empty one is returned if the ref does not exist.
+     */
+    public NoteMap readNotes(final String refName, final Context c) {
+        final Ref ref = Try.io(c, () -> repo.exactRef(refName));
+        if (ref == null) {
+            return NoteMap.newEmptyMap();
+        }
+        try (final RevWalk walk = new RevWalk(repo)) {
+            return Try.io(c, () -> {
+                final RevCommit commit = walk.parseCommit(ref.getObjectId());
+                return NoteMap.read(walk.getObjectReader(), commit);
+            });
         }
     }
 
@@ -222,20 +489,49 @@ public class RepositoryAccess {
      * Writes default notes if at least one exists.
      */
     public void writeNotes(final Context c) {
-        if (defaultNotes.iterator().hasNext()) {
-            writeNotes(defaultNotes, c);
+        if (!defaultNotes.isEmpty()) {
+            writeNotesCommit(defaultNotes.writeTree(c), c);
         }
     }
 
+    /**
+     * Runs the given function while no notes can be added to the default notes.
+     */
+    public void runWithNotesLocked(final Runnable f) {
+        defaultNotes.runLocked(f);
+    }
+
+    /**
+     * Releases the resources held by the default notes.
+     */
+    public void closeNotes() {
+        defaultNotes.close();
+    }
+
     /**
      * Writes notes.
      */
     public void writeNotes(final NoteMap notes, final Context c) {
-        final ObjectId treeId = isDryRunning ? ObjectId.zeroId() : insert(ins -> notes.writeTree(ins), c);
+        final ObjectId treeId;
+        synchronized (notes) {
+            treeId = isDryRunning ? ObjectId.zeroId() : insert(ins -> notes.writeTree(ins), c);
+        }
+        writeNotesCommit(treeId, c);
+    }
+
+    /**
+     * Writes a notes commit for the given tree, and updates the notes ref.
+     */
+    protected void writeNotesCommit(final ObjectId treeId, final Context c) {
         // TODO building PersonIdent better.
         final PersonIdent ident = new PersonIdent(repo);
         final String message = "Notes added by 'git notes add'";
         final ObjectId commit = writeCommit(NO_PARENTS, treeId, ident, ident, message, c);
+        // the ref must not point to objects not written out yet
+        final ObjectInserter ins = c.getInserter();
+        if (ins != null) {
+            Try.io(c, () -> ins.flush());
+        }
 
         applyRefUpdate(new RefEntry(Constants.R_NOTES_COMMITS, commit), c);
     }
@@ -254,6 +550,87 @@ public class RepositoryAccess {
 
     // Ref manipulation
 
+    /**
+     * Starts collecting ref changes into a batch. Until the batch is
+     * committed, updates, deletions and renames of non-symbolic refs are
+     * deferred.
+     */
+    public void beginRefBatch(final Context c) {
+        refBatch = new LinkedHashMap<>();
+    }
+
+    /**
+     * Applies the collected ref changes in a single batch. The batch is first
+     * tried atomically, which rewrites packed-refs only once; if any of the
+     * changes is rejected, the batch is retried non-atomically, so that a bad
+     * ref does not prevent the others from being updated.
+     */
+    public void commitRefBatch(final Context c) {
+        final Map<String, ObjectId> changes = refBatch;
+        refBatch = null;
+        if (isDryRunning || changes == null || changes.isEmpty()) {
+            return;
+        }
+        Try.io(c, () -> {
+            final Map<String, Ref> refs = new HashMap<>();
+            for (final Ref ref : repo.getRefDatabase().getRefs()) {
+                refs.put(ref.getName(), ref);
+            }
+            final List<ReceiveCommand> commands = new ArrayList<>();
+            for (final Map.Entry<String, ObjectId> e : changes.entrySet()) {
+                final String name = e.getKey();
+                final ObjectId newId = e.getValue();
+                final Ref ref = refs.get(name);
+                if (ref != null && ref.isSymbolic()) {
+                    // updating through a symbolic ref is left to RefUpdate
+                    if (newId.equals(ObjectId.zeroId())) {
+                        applyRefDeleteNow(name, c);
+                    } else {
+                        applyRefUpdateNow(new RefEntry(name, newId), c);
+                    }
+                    continue;
+                }
+                final ObjectId oldId = ref != null ? ref.getObjectId() : ObjectId.zeroId();
+                if (!oldId.equals(newId)) {
+                    commands.add(new ReceiveCommand(oldId, newId, name));
+                }
+            }
+            if (commands.isEmpty()) {
+                return;
+            }
+            BatchRefUpdate batch = executeRefBatch(commands, true);
+            if (!isSucceeded(batch)) {
+                log.debug("Atomic ref batch rejected; retrying ref by ref ({})", c);
+                final List<ReceiveCommand> retries = new ArrayList<>();
+                for (final ReceiveCommand cmd : batch.getCommands()) {
+                    retries.add(new ReceiveCommand(cmd.getOldId(), cmd.getNewId(), cmd.getRefName()));
+                }
+                batch = executeRefBatch(retries, false);
+            }
+            for (final ReceiveCommand cmd : batch.getCommands()) {
+                if (cmd.getResult() != ReceiveCommand.Result.OK) {
+                    log.warn("Failed to update ref {}: {} {} ({})", cmd.getRefName(), cmd.getResult(), cmd.getMessage(), c);
+                }
+            }
+            log.debug("Applied {} ref changes in a batch", batch.getCommands().size());
+        });
+    }
+
+    private BatchRefUpdate executeRefBatch(final List<ReceiveCommand> commands, final boolean isAtomic) throws IOException {
+        final BatchRefUpdate batch = repo.getRefDatabase().newBatchUpdate();
+        batch.setAtomic(isAtomic);
+        batch.setAllowNonFastForwards(true);
+        batch.addCommand(commands);
+        try (final RevWalk walk = new RevWalk(repo)) {
+            batch.execute(walk, NullProgressMonitor.INSTANCE);
+        }
+        return batch;
+    }
+
+    private static boolean isSucceeded(final BatchRefUpdate batch) {
+        return batch.getCommands().stream().allMatch(cmd -> cmd.getResult() == ReceiveCommand.Result.OK);
+    }
+
     /**
      * Applies ref update.
      */
@@ -261,6 +638,14 @@ public class RepositoryAccess {
         if (isDryRunning) {
             return;
         }
+        if (refBatch != null && !entry.isSymbolic()) {
+            refBatch.put(entry.name, entry.id.copy());
+            return;
+        }
+        applyRefUpdateNow(entry, c);
+    }
+
+    private void applyRefUpdateNow(final RefEntry entry, final Context c) {
         Try.io(c, () -> {
             final RefUpdate cmd = repo.getRefDatabase().newUpdate(entry.name, false);
             cmd.setForceUpdate(true);
@@ -280,8 +665,16 @@ public class RepositoryAccess {
         if (isDryRunning) {
             return;
         }
+        if (refBatch != null && !entry.isSymbolic()) {
+            refBatch.put(entry.name, ObjectId.zeroId());
+            return;
+        }
+        applyRefDeleteNow(entry.name, c);
+    }
+
+    private void applyRefDeleteNow(final String name, final Context c) {
         Try.io(c, () -> {
-            final RefUpdate cmd = repo.getRefDatabase().newUpdate(entry.name, false);
+            final RefUpdate cmd = repo.getRefDatabase().newUpdate(name, false);
             cmd.setForceUpdate(true);
             cmd.delete();
         });
@@ -294,28 +687,138 @@ public class RepositoryAccess {
         if (isDryRunning) {
             return;
         }
+        if (refBatch != null) {
+            final ObjectId id = refBatch.containsKey(name) ? refBatch.get(name) : Try.io(c, () -> {
+                final Ref ref = repo.exactRef(name);
+                return ref != null && !ref.isSymbolic() ? ref.getObjectId() : null;
+            });
+            if (id != null) {
+                refBatch.put(name, ObjectId.zeroId());
+                refBatch.put(newName, id);
+                return;
+            }
+        }
         Try.io(c, () -> {
             final RefRename cmd = repo.getRefDatabase().newRename(name, newName);
             cmd.rename();
         });
     }
 
+    // Handling ObjectReader
+
+    /**
+     * Generates an object reader, which can be carried in a context.
+     */
+    public ObjectReader getReader(final Context c) {
+        final ObjectReader reader = repo.newObjectReader();
+        readers.add(reader);
+        return reader;
+    }
+
+    /**
+     * Closes an object reader generated by getReader().
+     */
+    public void releaseReader(final ObjectReader reader) {
+        readers.remove(reader);
+        reader.close();
+    }
+
+    /**
+     * Reads objects using a prepared object reader.
+     */
+    public <R> R read(final IOThrowableFunction<ObjectReader, R> f, final Context c) {
+        final ObjectReader readerContext = c.getReader();
+        // the reader in the context may belong to the other repository
+        if (readerContext != null && readers.contains(readerContext)) {
+            return Try.io(c, f).apply(readerContext);
+        }
+        try (final ObjectReader reader = repo.newObjectReader()) {
+            return Try.io(c, f).apply(reader);
+        }
+    }
+
     // Handling ObjectInserter
 
     /**
-     * Opens and provides an object inserter.
+     * Opens and provides an object inserter. The inserter is flushed if the
+     * given function completes normally.
      */
     public void openInserter(final Consumer<ObjectInserter> f, final Context c) {
-        try (final ObjectInserter ins = repo.newObjectInserter()) {
+        try (final ObjectInserter ins = newInserter(c)) {
             f.accept(ins);
+            Try.io(c, () -> ins.flush());
         }
     }
 
     /**
-     * Generates an object inserter.
+     * Generates an object inserter. The caller is responsible for flushing
+     * and closing it.
      */
     public ObjectInserter getInserter(final Context c) {
-        return repo.newObjectInserter();
+        return newInserter(c);
+    }
+
+    /**
+     * Deletes the pack files left being written by a previous run, if objects
+     * are written into pack files.
+     */
+    public void deleteTemporaryFiles(final Context c) {
+        if (packThreshold > 0 && storage != null) {
+            Try.io(c, () -> RollingPackInserter.deleteTemporaryFiles(storage));
+        }
+    }
+
+    /**
+     * Generates an object inserter for long-lived use, which writes objects
+     * into pack files if the pack threshold is set.
+     */
+    protected ObjectInserter newInserter(final Context c) {
+        if (packThreshold > 0 && storage != null) {
+            return new RollingPackInserter(storage, packThreshold, getObjectFilter(c));
+        }
+        return newLooseInserter(c);
+    }
+
+    /**
+     * Generates an object inserter writing loose objects.
+     */
+    protected ObjectInserter newLooseInserter(final Context c) {
+        return new FilteredInserter(repo.newObjectInserter());
+    }
+
+    /**
+     * An object inserter adding the inserted objects to the object filter,
+     * if it has been built.
+     */
+    protected class FilteredInserter extends ObjectInserter.Filter {
+        private final ObjectInserter delegate;
+
+        public FilteredInserter(final ObjectInserter delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        protected ObjectInserter delegate() {
+            return delegate;
+        }
+
+        @Override
+        public ObjectId insert(final int type, final byte[] data, final int off, final int len) throws IOException {
+            return added(delegate.insert(type, data, off, len));
+        }
+
+        @Override
+        public ObjectId insert(final int type, final long len, final InputStream in) throws IOException {
+            return added(delegate.insert(type, len, in));
+        }
+
+        private ObjectId added(final ObjectId id) {
+            final ObjectIdBloomFilter filter = objectFilter;
+            if (filter != null) {
+                filter.add(id);
+            }
+            return id;
+        }
     }
 
     /**
@@ -326,8 +829,10 @@ public class RepositoryAccess {
         if (inserterContext != null) {
             return Try.io(f).apply(inserterContext);
         }
-        try (final ObjectInserter inserter = repo.newObjectInserter()) {
-            return Try.io(f).apply(inserter);
+        try (final ObjectInserter inserter = newLooseInserter(c)) {
+            final R result = Try.io(f).apply(inserter);
+            Try.io(c, () -> inserter.flush());
+            return result;
         }
     }
 }
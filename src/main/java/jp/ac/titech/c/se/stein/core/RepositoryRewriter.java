@@ -1,69 +1,176 @@
 package jp.ac.titech.c.se.stein.core;
 
 import static java.nio.charset.StandardCharsets.US_ASCII;
-
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
 
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.FileMode;
 import org.eclipse.jgit.lib.GpgSignature;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ObjectStream;
 import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.notes.Note;
 import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTag;
 import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.util.sha1.SHA1;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.commons.io.IOUtils;
+
 import jp.ac.titech.c.se.stein.Application.Config;
 import jp.ac.titech.c.se.stein.core.Context.Key;
 import jp.ac.titech.c.se.stein.core.EntrySet.Entry;
+import jp.ac.titech.c.se.stein.core.Try.IOThrowableBiConsumer;
+import picocli.CommandLine.Model.CommandSpec;
+import picocli.CommandLine.Model.OptionSpec;
 import picocli.CommandLine.Option;
+import picocli.CommandLine.Spec;
 
 public class RepositoryRewriter {
     private static final Logger log = LoggerFactory.getLogger(RepositoryRewriter.class);
 
     protected static final ObjectId ZERO = ObjectId.zeroId();
 
+    protected static final int MAX_PENDING_BLOBS = 100000;
+
+    protected static final int MAX_PENDING_ENTRIES = 100000;
+
     /**
      * Entry-to-entries mapping.
      */
     protected Map<Entry, EntrySet> entryMapping = new HashMap<>();
 
+    /**
+     * Path-independent mapping of rewritten blobs in path-sensitive mode, if
+     * blobs are sharable.
+     */
+    protected Map<Entry, EntrySet> blobMapping = new HashMap<>();
+
+    /**
+     * Persistent entry-to-entries mapping, if enabled.
+     */
+    protected EntryStore entryStore;
+
     /**
      * Commit-to-commit mapping.
      */
-    protected final Map<ObjectId, ObjectId> commitMapping = new HashMap<>();
+    protected Map<ObjectId, ObjectId> commitMapping = new ObjectIdMap();
 
     /**
      * Tag-to-tag mapping.
      */
-    protected final Map<ObjectId, ObjectId> tagMapping = new HashMap<>();
+    protected final Map<ObjectId, ObjectId> tagMapping = new ObjectIdMap();
 
     /**
      * Ref-to-ref mapping.
      */
     protected final Map<RefEntry, RefEntry> refEntryMapping = new HashMap<>();
 
+    /**
+     * Entries being rewritten in parallel mode.
+     */
+    protected final Map<Entry, CompletableFuture<EntrySet>> runningEntries = new ConcurrentHashMap<>();
+
+    /**
+     * Statistics of the entry mapping.
+     */
+    protected final LongAdder entryHitCount = new LongAdder(), entryLoadCount = new LongAdder(),
+            entryRewriteCount = new LongAdder(), entryJoinCount = new LongAdder(), blobHitCount = new LongAdder();
+
+    /**
+     * The number of commits rewritten since the beginning of this run.
+     */
+    protected final AtomicLong commitCount = new AtomicLong();
+
+    /**
+     * The source commits rewritten since the last checkpoint.
+     */
+    protected final Queue<ObjectId> uncheckpointedCommits = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Per-thread inserters in parallel mode, indexed by thread Id.
+     */
+    protected final Map<Long, ObjectInserter> workerInserters = new ConcurrentHashMap<>();
+
+    /**
+     * Per-thread readers of the source repository in parallel mode, indexed by thread Id.
+     */
+    protected final Map<Long, ObjectReader> workerReaders = new ConcurrentHashMap<>();
+
+    /**
+     * Unchanged blobs to be copied to the target repository.
+     */
+    protected final Set<ObjectId> pendingBlobs = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The pool of the threads rewriting blobs, if enabled.
+     */
+    protected ExecutorService blobPool;
+
     protected RepositoryAccess source, target;
 
+    /**
+     * The specification of the options of this rewriter, if parsed by picocli.
+     */
+    @Spec
+    protected CommandSpec spec;
+
     protected boolean isOverwriting = false;
 
     protected boolean isPathSensitive = false;
 
-    @Option(names = { "-p", "--parallel" }, paramLabel = "<nthreads>", description = "number of threads to rewrite trees in parallel", order = Config.MIDDLE,
+    /**
+     * Whether a rewritten blob can be shared among the entries of the same
+     * blob and name in different directories, i.e., whether rewriting the
+     * content of a blob depends only on its name. Meaningful only in
+     * path-sensitive mode; subclasses opt in by setting this.
+     */
+    protected boolean isBlobSharable = false;
+
+    @Option(names = { "-p", "--parallel" }, paramLabel = "<nthreads>", description = "number of threads to rewrite trees and commits in parallel", order = Config.MIDDLE,
             fallbackValue = "0")
     protected int nthreads = 1;
 
@@ -76,6 +183,30 @@ public class RepositoryRewriter {
     @Option(names = "--no-notes-backward", negatable = true, description = "note original commits to destination repo", order = Config.MIDDLE)
     protected boolean isAddingBackwardNotes = true;
 
+    @Option(names = "--incremental", description = "rewrite only commits not noted in destination repo", order = Config.MIDDLE)
+    protected boolean isIncremental = false;
+
+    @Option(names = "--cache-size", paramLabel = "<n>", description = "maximum number of entries cached in memory (0: unlimited)", order = Config.MIDDLE)
+    protected int cacheSize = 0;
+
+    @Option(names = "--entry-store", description = "store rewritten entries in destination repo for reuse in later runs", order = Config.MIDDLE)
+    protected boolean isStoringEntries = false;
+
+    @Option(names = "--checkpoint", paramLabel = "<n>", description = "save a checkpoint every <n> commits", order = Config.MIDDLE)
+    protected int checkpointInterval = 0;
+
+    @Option(names = "--resume", description = "resume rewriting from the last checkpoint", order = Config.MIDDLE)
+    protected boolean isResuming = false;
+
+    @Option(names = "--blob-threads", paramLabel = "<nthreads>", description = "number of threads to rewrite blobs asynchronously (0: disabled)", order = Config.MIDDLE)
+    protected int blobThreads = 0;
+
+    @Option(names = "--window", paramLabel = "<n>", description = "maximum number of commits queued for the worker threads in parallel mode (0: unlimited)", order = Config.MIDDLE)
+    protected int window = 10000;
+
+    @Option(names = "--pack-size", paramLabel = "<mb>", description = "write objects into pack files of about <mb> MiB each (0: loose objects)", order = Config.MIDDLE)
+    protected int packSize = 0;
+
     @Option(names = "--extra-attributes", description = "rewrite encoding and signature in commits", order = Config.MIDDLE)
     protected boolean isRewritingExtraAttributes = false;
 
@@ -87,74 +218,407 @@ public class RepositoryRewriter {
             final int nprocs = Runtime.getRuntime().availableProcessors();
             nthreads = nprocs > 1 ? nprocs - 1 : 1;
         }
-        if (nthreads > 1) {
+        if (cacheSize > 0) {
+            // the shared blobs take half of the budget, if any
+            final int blobCacheSize = isSharingBlobs() ? Math.max(cacheSize / 2, 1) : 0;
+            this.entryMapping = new EntryCache(Math.max(cacheSize - blobCacheSize, 1));
+            this.blobMapping = new EntryCache(Math.max(blobCacheSize, 1));
+        } else if (isConcurrent()) {
             this.entryMapping = new ConcurrentHashMap<>();
+            this.blobMapping = new ConcurrentHashMap<>();
+        }
+        if (nthreads > 1) {
+            this.commitMapping = Collections.synchronizedMap(commitMapping);
         }
         if (isDryRunning) {
             source.setDryRunning(true);
             target.setDryRunning(true);
         }
+        if (packSize > 0) {
+            target.setPackThreshold((long) packSize << 20);
+        }
+        if (isStoringEntries && !isDryRunning) {
+            final File dir = new File(target.getDirectory(), "stein/entries/" + getFingerprint());
+            this.entryStore = new EntryStore(dir);
+        }
+    }
+
+    /**
+     * Tests whether rewritten blobs are shared across directories.
+     */
+    protected boolean isSharingBlobs() {
+        return isPathSensitive && isBlobSharable;
+    }
+
+    /**
+     * Tests whether entries can be rewritten by multiple threads.
+     */
+    protected boolean isConcurrent() {
+        return nthreads > 1 || blobThreads > 0;
+    }
+
+    /**
+     * Returns the fingerprint of this rewriter, which identifies the entry
+     * store to be used. By default, it is computed from the class name and
+     * the values of the options declared in its subclasses.
+     */
+    protected String getFingerprint() {
+        final StringBuilder sb = new StringBuilder(getClass().getName());
+        sb.append(";pathSensitive=").append(isPathSensitive);
+        sb.append(";blobSharable=").append(isBlobSharable);
+        if (spec != null) {
+            // the parsed options, including the ones bound to setter methods
+            final List<OptionSpec> options = new ArrayList<>(spec.options());
+            options.sort(Comparator.comparing(OptionSpec::longestName));
+            for (final OptionSpec o : options) {
+                final Object member = o.userObject();
+                if (member instanceof Member && ((Member) member).getDeclaringClass() == RepositoryRewriter.class) {
+                    continue;
+                }
+                sb.append(';').append(o.longestName()).append('=').append(toFingerprintValue(o.getValue()));
+            }
+        } else {
+            // not parsed by picocli; only the fields are available
+            for (Class<?> k = getClass(); k != RepositoryRewriter.class; k = k.getSuperclass()) {
+                final Field[] fields = k.getDeclaredFields();
+                Arrays.sort(fields, Comparator.comparing(Field::getName));
+                for (final Field f : fields) {
+                    if (f.isAnnotationPresent(Option.class)) {
+                        f.setAccessible(true);
+                        final Object value = Try.run(() -> f.get(this));
+                        sb.append(';').append(f.getName()).append('=').append(toFingerprintValue(value));
+                    }
+                }
+            }
+        }
+        final SHA1 md = SHA1.newInstance();
+        md.update(sb.toString().getBytes(UTF_8));
+        return md.toObjectId().name();
+    }
+
+    private static String toFingerprintValue(final Object value) {
+        return value instanceof Object[] ? Arrays.deepToString((Object[]) value) : String.valueOf(value);
     }
 
     public void rewrite(final Context c) {
         setUp(c);
+        target.deleteTemporaryFiles(c);
+        if (isIncremental) {
+            restoreCommitMapping(c);
+        }
+        if (isResuming) {
+            restoreCheckpoint(c);
+        } else {
+            deleteCheckpoint(c);
+        }
         rewriteCommits(c);
+        copyPendingBlobs(c);
+        writeEntryStore(c);
         updateRefs(c);
         source.writeNotes(c);
         target.writeNotes(c);
+        source.closeNotes();
+        target.closeNotes();
+        closeEntryStore();
+        deleteCheckpoint(c);
+        reportCacheStatistics(c);
         cleanUp(c);
     }
 
     protected void setUp(final Context c) {}
 
     /**
-     * Rewrites all commits.
+     * Restores the commit mapping of the previous run from the backward notes.
      */
-    protected void rewriteCommits(final Context c) {
-        rewriteRootTrees(c);
-
-        target.openInserter(ins -> {
-            final Context uc = c.with(Key.inserter, ins);
-            try (final RevWalk walk = prepareRevisionWalk(uc)) {
-                for (final RevCommit commit : walk) {
-                    rewriteCommit(commit, uc);
-                    commit.disposeBody();
-                }
+    protected void restoreCommitMapping(final Context c) {
+        source.loadNotes(c);
+        target.loadNotes(c);
+        for (final Note note : target.getNotes()) {
+            final String content = new String(target.readBlob(note.getData(), c), US_ASCII).trim();
+            if (ObjectId.isId(content)) {
+                commitMapping.put(ObjectId.fromString(content), note.copy());
             }
-        }, c);
+        }
+        log.info("Restored {} commit mappings from backward notes", commitMapping.size());
     }
 
     /**
-     * Rewrites all root trees.
+     * Returns the file storing the checkpoint.
      */
-    protected void rewriteRootTrees(final Context c) {
-        if (nthreads <= 1) {
-            // This will be done in each rewriteCommit() in non-parallel mode.
+    protected File getCheckpointFile() {
+        return new File(target.getDirectory(), "stein/checkpoint");
+    }
+
+    /**
+     * Saves a checkpoint every the specified number of commits.
+     */
+    protected void countCheckpoint(final RevCommit commit, final Context c) {
+        if (checkpointInterval <= 0 || isDryRunning) {
             return;
         }
+        uncheckpointedCommits.add(commit.getId());
+        if (commitCount.incrementAndGet() % checkpointInterval == 0) {
+            saveCheckpoint(c);
+        }
+    }
+
+    /**
+     * Saves the progress so far, so that a later run can resume from here.
+     * The commit mappings added since the last checkpoint are appended to the
+     * checkpoint file as pairs of raw object ids, and the notes are written to
+     * the repositories.
+     */
+    protected synchronized void saveCheckpoint(final Context c) {
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final byte[] buf = new byte[2 * Constants.OBJECT_ID_LENGTH];
+        int count = 0;
+        for (ObjectId id; (id = uncheckpointedCommits.poll()) != null; ) {
+            final ObjectId newId = commitMapping.get(id);
+            if (newId != null) {
+                id.copyRawTo(buf, 0);
+                newId.copyRawTo(buf, Constants.OBJECT_ID_LENGTH);
+                records.write(buf, 0, buf.length);
+                count++;
+            }
+        }
+        // no notes can be added until written, since their blobs may not be flushed yet
+        target.runWithNotesLocked(() -> {
+            // the objects of the commits in the mapping must be written out
+            flushObjects(c);
+            writeEntryStore(c);
+            // the notes of the source repo must not be written with the inserter of the target repo
+            source.writeNotes(c.with(Key.inserter, null));
+            target.writeNotes(c);
+        });
+
+        final Path file = getCheckpointFile().toPath();
+        Try.io(c, () -> {
+            Files.createDirectories(file.getParent());
+            try (final FileOutputStream out = new FileOutputStream(file.toFile(), true)) {
+                records.writeTo(out);
+                out.getFD().sync();
+            }
+        });
+        log.info("Checkpoint: {} commits rewritten ({} since the last one)", commitMapping.size(), count);
+    }
+
+    /**
+     * Writes out the objects inserted so far, including the scheduled blobs.
+     */
+    protected synchronized void flushObjects(final Context c) {
+        copyPendingBlobs(c);
+        final ObjectInserter ins = c.getInserter();
+        if (ins != null) {
+            Try.io(c, () -> ins.flush());
+        }
+        for (final ObjectInserter workerIns : workerInserters.values()) {
+            Try.io(c, () -> workerIns.flush());
+        }
+    }
+
+    /**
+     * Restores the commit mapping and the notes from the last checkpoint.
+     */
+    protected void restoreCheckpoint(final Context c) {
+        final File file = getCheckpointFile();
+        if (!file.exists()) {
+            log.warn("Checkpoint not found: {}", file);
+            return;
+        }
+        final int n = Try.io(c, () -> {
+            // a trailing partial record, if any, was left by an interrupted checkpoint
+            final byte[] buf = new byte[2 * Constants.OBJECT_ID_LENGTH];
+            int count = 0;
+            try (final InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+                while (IOUtils.read(in, buf) == buf.length) {
+                    commitMapping.put(ObjectId.fromRaw(buf, 0), ObjectId.fromRaw(buf, Constants.OBJECT_ID_LENGTH));
+                    count++;
+                }
+            }
+            return count;
+        });
+        source.loadNotes(c);
+        target.loadNotes(c);
+        log.info("Resuming from checkpoint: {} commits rewritten", n);
+    }
+
+    /**
+     * Deletes the checkpoint file, if exists.
+     */
+    protected void deleteCheckpoint(final Context c) {
+        Try.io(c, () -> Files.deleteIfExists(getCheckpointFile().toPath()));
+    }
+
+    /**
+     * Rewrites all commits.
+     */
+    protected void rewriteCommits(final Context c) {
+        if (blobThreads > 0) {
+            blobPool = Executors.newFixedThreadPool(blobThreads);
+        }
+        try {
+            if (nthreads > 1) {
+                rewriteCommitsInParallel(c);
+            } else {
+                target.openInserter(ins -> {
+                    final ObjectReader reader = source.getReader(c);
+                    final Context uc = c.with(Key.inserter, ins, Key.reader, reader);
+                    try (final RevWalk walk = prepareRevisionWalk(uc)) {
+                        for (final RevCommit commit : walk) {
+                            rewriteCommit(commit, uc);
+                            commit.disposeBody();
+                            countCheckpoint(commit, uc);
+                        }
+                    } finally {
+                        source.releaseReader(reader);
+                    }
+                }, c);
+            }
+            // the inserters of the worker threads are released without being flushed
+            flushObjects(c);
+        } finally {
+            if (blobPool != null) {
+                blobPool.shutdown();
+                blobPool = null;
+            }
+            releaseWorkers();
+        }
+    }
 
-        final Map<Long, Context> cxts = new ConcurrentHashMap<>();
-        final ExecutorService pool = Executors.newFixedThreadPool(nthreads);
-        try (final RevWalk walk = prepareRevisionWalk(c)) {
+    /**
+     * Rewrites all commits in parallel in a single pass of the revision walk.
+     * The root tree of each commit is rewritten as soon as the commit is
+     * walked, and the commit itself is written as soon as its root tree and
+     * all of its parents have been rewritten.
+     */
+    protected void rewriteCommitsInParallel(final Context c) {
+        final ExecutorService pool = new ForkJoinPool(nthreads);
+        // the finished tasks are removed, as their commits have been rewritten already;
+        // the failed ones are kept so that the tasks of their children fail as well
+        final Map<ObjectId, CompletableFuture<Void>> tasks = new ConcurrentHashMap<>();
+        final Window w = new Window(window);
+        try (final RevWalk walk = prepareStreamingRevisionWalk(c)) {
             for (final RevCommit commit : walk) {
-                pool.execute(() -> {
-                    final long id = Thread.currentThread().getId();
-                    final Context uc = cxts.computeIfAbsent(id, k -> c.with(Key.inserter, target.getInserter(c)));
-                    final Context uuc = uc.with(Key.rev, commit, Key.commit, commit);
-                    rewriteRootTree(commit.getTree().getId(), uuc);
-                    commit.disposeBody();
+                if (!w.enter()) {
+                    break;
+                }
+                final CompletableFuture<RevCommit> treeTask = CompletableFuture.supplyAsync(() -> {
+                    final Context uc = bindWorker(c);
+                    final RevCommit parsed = source.parseCommit(commit, uc);
+                    rewriteRootTree(parsed.getTree().getId(), uc.with(Key.rev, parsed, Key.commit, parsed));
+                    return parsed;
+                }, pool);
+                // parents out of this walk have been rewritten already
+                final CompletableFuture<?>[] parents = Stream.of(commit.getParents())
+                        .map(tasks::get)
+                        .filter(Objects::nonNull)
+                        .toArray(CompletableFuture[]::new);
+                final CompletableFuture<Void> task = CompletableFuture.allOf(parents).thenAcceptBothAsync(treeTask, (v, parsed) -> {
+                    final Context uc = bindWorker(c);
+                    rewriteCommit(parsed, uc);
+                    countCheckpoint(parsed, uc);
+                }, pool);
+                tasks.put(commit, task);
+                task.whenComplete((r, e) -> {
+                    if (e == null) {
+                        tasks.remove(commit);
+                    }
+                    w.leave(task);
                 });
             }
+            w.await();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A bound of the number of tasks in flight, which blocks the producer of
+     * the tasks until the worker threads catch up.
+     */
+    protected static class Window {
+        private final int size;
+
+        private final Semaphore slots;
+
+        private final AtomicReference<CompletableFuture<?>> failure = new AtomicReference<>();
+
+        public Window(final int size) {
+            this.size = size > 0 ? size : Integer.MAX_VALUE;
+            this.slots = new Semaphore(this.size);
+        }
+
+        /**
+         * Waits for a free slot. Returns false if a task has failed.
+         */
+        public boolean enter() {
+            slots.acquireUninterruptibly();
+            if (failure.get() != null) {
+                slots.release();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Frees the slot of a finished task.
+         */
+        public void leave(final CompletableFuture<?> task) {
+            if (task.isCompletedExceptionally()) {
+                failure.compareAndSet(null, task);
+            }
+            slots.release();
+        }
+
+        /**
+         * Waits for all the tasks, rethrowing the first failure.
+         */
+        public void await() {
+            slots.acquireUninterruptibly(size);
+            slots.release(size);
+            final CompletableFuture<?> failed = failure.get();
+            if (failed != null) {
+                RepositoryRewriter.await(failed);
+            }
         }
-        pool.shutdown();
+    }
+
+    /**
+     * Returns the context bound to the inserter and the reader of the current worker thread.
+     */
+    protected Context bindWorker(final Context c) {
+        final long id = Thread.currentThread().getId();
+        final ObjectInserter ins = workerInserters.computeIfAbsent(id, k -> target.getInserter(c));
+        final ObjectReader reader = workerReaders.computeIfAbsent(id, k -> source.getReader(c));
+        return c.with(Key.inserter, ins, Key.reader, reader);
+    }
 
-        // Long.MAX_VALUE means infinity.
-        // @see java.util.concurrent
-        Try.run(() -> pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS));
+    /**
+     * Releases the inserters and the readers of the worker threads. The
+     * objects not flushed yet are discarded.
+     */
+    protected void releaseWorkers() {
+        for (final ObjectInserter ins : workerInserters.values()) {
+            ins.close();
+        }
+        workerInserters.clear();
+        for (final ObjectReader reader : workerReaders.values()) {
+            source.releaseReader(reader);
+        }
+        workerReaders.clear();
+    }
 
-        // finalize
-        for (final Context uc : cxts.values()) {
-            uc.getInserter().close();
+    /**
+     * Waits for the given task, rethrowing its failure as is.
+     */
+    protected static <T> T await(final CompletableFuture<T> task) {
+        try {
+            return task.join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
         }
     }
 
@@ -177,6 +641,17 @@ public class RepositoryRewriter {
         return walk;
     }
 
+    /**
+     * Prepares the revision walk that does not retain the commit bodies. The
+     * body of each commit is parsed again when it is rewritten, so that only
+     * the commit graph is kept in memory during the walk.
+     */
+    protected RevWalk prepareStreamingRevisionWalk(final Context c) {
+        final RevWalk walk = prepareRevisionWalk(c);
+        walk.setRetainBody(false);
+        return walk;
+    }
+
     /**
      * Collects the set of commit Ids used as start points.
      */
@@ -208,7 +683,17 @@ public class RepositoryRewriter {
      * Collects the set of commit Ids used as uninteresting points.
      */
     protected Collection<ObjectId> collectUninterestings(final Context c) {
-        return Collections.emptyList();
+        if (!isIncremental && !isResuming) {
+            return Collections.emptyList();
+        }
+        // commits already rewritten in the previous run
+        final List<ObjectId> result = new ArrayList<>();
+        for (final ObjectId id : commitMapping.keySet()) {
+            if (source.hasObject(id, c)) {
+                result.add(id);
+            }
+        }
+        return result;
     }
 
     /**
@@ -238,7 +723,8 @@ public class RepositoryRewriter {
         commitMapping.put(oldId, newId);
         log.debug("Rewrite commit: {} -> {} ({})", oldId.name(), newId.name(), c);
 
-        source.addNote(oldId, getForwardNote(newId, c), uc);
+        // the notes of the source repo must not be written with the inserter of the target repo
+        source.addNote(oldId, getForwardNote(newId, c), uc.with(Key.inserter, null));
         target.addNote(newId, getBackwardNote(oldId, c), uc);
 
         return newId;
@@ -296,11 +782,81 @@ public class RepositoryRewriter {
         // computeIfAbsent is unsuitable because this may be invoked recursively
         final EntrySet cache = entryMapping.get(entry);
         if (cache != null) {
+            entryHitCount.increment();
             return cache;
-        } else {
-            final EntrySet result = rewriteEntry(entry, c);
-            entryMapping.put(entry, result);
+        }
+        if (!isConcurrent()) {
+            return computeEntry(entry, c);
+        }
+
+        // in parallel mode, later arrivals wait for the first rewriting of the same entry
+        final CompletableFuture<EntrySet> task = new CompletableFuture<>();
+        final CompletableFuture<EntrySet> running = runningEntries.putIfAbsent(entry, task);
+        if (running != null) {
+            entryJoinCount.increment();
+            return await(running);
+        }
+        try {
+            // it may have been finished just before registering the task
+            final EntrySet finished = entryMapping.get(entry);
+            if (finished != null) {
+                entryJoinCount.increment();
+            }
+            final EntrySet result = finished != null ? finished : computeEntry(entry, c);
+            task.complete(result);
             return result;
+        } catch (final RuntimeException e) {
+            task.completeExceptionally(e);
+            throw e;
+        } finally {
+            runningEntries.remove(entry);
+        }
+    }
+
+    /**
+     * Obtains tree entries from the entry store or by rewriting, and caches them.
+     */
+    protected EntrySet computeEntry(final Entry entry, final Context c) {
+        if (entryStore != null) {
+            final EntrySet stored = entryStore.load(entry, c);
+            if (stored != null) {
+                entryLoadCount.increment();
+                entryMapping.put(entry, stored);
+                return stored;
+            }
+        }
+        entryRewriteCount.increment();
+        final EntrySet result = rewriteEntry(entry, c);
+        entryMapping.put(entry, result);
+        if (entryStore != null) {
+            entryStore.store(entry, result, c);
+            if (entryStore.getPendingCount() >= MAX_PENDING_ENTRIES) {
+                writeEntryStore(c);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes out the pending mappings of the entry store, after the objects
+     * referred by them are written out.
+     */
+    protected synchronized void writeEntryStore(final Context c) {
+        if (entryStore == null) {
+            return;
+        }
+        // the entries stored after this point are left to the next time
+        final Map<Entry, EntrySet> mappings = entryStore.takePending();
+        flushObjects(c);
+        entryStore.write(mappings, c);
+    }
+
+    /**
+     * Releases the entry store.
+     */
+    protected void closeEntryStore() {
+        if (entryStore != null) {
+            entryStore.close();
         }
     }
 
@@ -310,11 +866,31 @@ public class RepositoryRewriter {
     protected EntrySet rewriteEntry(final Entry entry, final Context c) {
         final Context uc = c.with(Key.entry, entry);
 
-        final ObjectId newId = entry.isTree() ? rewriteTree(entry.id, uc) : rewriteBlob(entry.id, uc);
+        final ObjectId newId = entry.isTree() ? rewriteTree(entry.id, uc) : getBlob(entry, uc);
         final String newName = rewriteName(entry.name, uc);
         return newId == ZERO ? EntrySet.EMPTY : new Entry(entry.mode, newName, newId, entry.directory);
     }
 
+    /**
+     * Obtains the rewritten blob of a blob entry. In path-sensitive mode, the
+     * result is shared among the entries of the same blob and name in
+     * different directories if blobs are sharable.
+     */
+    protected ObjectId getBlob(final Entry entry, final Context c) {
+        if (entry.directory == null || !isBlobSharable) {
+            return rewriteBlob(entry.id, c);
+        }
+        final Entry key = new Entry(entry.mode, entry.name, entry.id);
+        final EntrySet cache = blobMapping.get(key);
+        if (cache != null) {
+            blobHitCount.increment();
+            return ((Entry) cache).id;
+        }
+        final ObjectId result = rewriteBlob(entry.id, c);
+        blobMapping.put(key, new Entry(entry.mode, entry.name, result));
+        return result;
+    }
+
     /**
      * Rewrites a tree object.
      */
@@ -325,10 +901,68 @@ public class RepositoryRewriter {
 
         final String dir = isPathSensitive ? path : null;
 
-        final List<Entry> entries = new ArrayList<>();
-        for (final Entry e : source.readTree(treeId, dir, uc)) {
-            final EntrySet rewritten = getEntry(e, uc);
-            rewritten.registerTo(entries);
+        // look up the cache with the cursor, and materialize only the uncached children
+        final TreeCursor cursor = source.openTree(treeId, dir, uc);
+        final List<EntrySet> cached = new ArrayList<>();
+        final List<Entry> children = new ArrayList<>();
+        while (cursor.next()) {
+            final EntrySet cache = entryMapping.get(cursor);
+            if (cache != null) {
+                entryHitCount.increment();
+            } else {
+                children.add(cursor.getEntry());
+            }
+            cached.add(cache);
+        }
+
+        final EntrySet[] results = new EntrySet[children.size()];
+        final boolean[] isAsync = new boolean[results.length];
+        final List<CompletableFuture<Void>> blobTasks = new ArrayList<>();
+        if (blobPool != null) {
+            // hand the uncached blobs to the blob threads, and wait for them after the subtrees
+            for (int i = 0; i < results.length; i++) {
+                final Entry e = children.get(i);
+                if (!e.isTree() && (results[i] = entryMapping.get(e)) == null) {
+                    final int index = i;
+                    isAsync[i] = true;
+                    blobTasks.add(CompletableFuture.runAsync(() -> {
+                        results[index] = getEntry(e, bindWorker(uc));
+                    }, blobPool));
+                }
+            }
+        }
+        if (nthreads > 1 && ForkJoinTask.inForkJoinPool()) {
+            // rewrite the uncached children concurrently
+            final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < results.length; i++) {
+                final Entry e = children.get(i);
+                if (isAsync[i]) {
+                    continue;
+                }
+                results[i] = entryMapping.get(e);
+                if (results[i] == null) {
+                    final int index = i;
+                    tasks.add(ForkJoinTask.adapt(() -> {
+                        results[index] = getEntry(e, bindWorker(uc));
+                    }));
+                }
+            }
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            for (int i = 0; i < results.length; i++) {
+                if (!isAsync[i]) {
+                    results[i] = getEntry(children.get(i), uc);
+                }
+            }
+        }
+        if (!blobTasks.isEmpty()) {
+            await(CompletableFuture.allOf(blobTasks.toArray(new CompletableFuture<?>[0])));
+        }
+
+        final List<Entry> entries = new ArrayList<>(cached.size());
+        int k = 0;
+        for (final EntrySet cache : cached) {
+            (cache != null ? cache : results[k++]).registerTo(entries);
         }
         final ObjectId newId = entries.isEmpty() ? ZERO : target.writeTree(entries, uc);
         if (log.isDebugEnabled() && !newId.equals(treeId)) {
@@ -341,14 +975,45 @@ public class RepositoryRewriter {
      * Rewrites a blob object.
      */
     protected ObjectId rewriteBlob(final ObjectId blobId, final Context c) {
-        if (isOverwriting) {
+        if (isOverwriting || isDryRunning) {
             return blobId;
         }
-        final ObjectId newId = target.writeBlob(source.readBlob(blobId, c), c);
-        if (log.isDebugEnabled() && !newId.equals(blobId)) {
-            log.debug("Rewrite blob: {} -> {} ({})", blobId.name(), newId.name(), c);
+        if (!target.hasObject(blobId, c)) {
+            copyBlob(blobId, c);
         }
-        return newId;
+        return blobId;
+    }
+
+    /**
+     * Schedules copying an unchanged blob object to the target repository.
+     */
+    protected void copyBlob(final ObjectId blobId, final Context c) {
+        pendingBlobs.add(blobId.copy());
+        if (pendingBlobs.size() >= MAX_PENDING_BLOBS) {
+            copyPendingBlobs(c);
+        }
+    }
+
+    /**
+     * Copies the scheduled blob objects to the target repository at once.
+     */
+    protected synchronized void copyPendingBlobs(final Context c) {
+        if (pendingBlobs.isEmpty()) {
+            return;
+        }
+        final List<ObjectId> ids = new ArrayList<>(pendingBlobs);
+        target.copyBlobs(source, ids, c);
+        for (final ObjectId id : ids) {
+            pendingBlobs.remove(id);
+        }
+    }
+
+    /**
+     * Rewrites the content of a blob object in a streaming manner, so that
+     * large blobs are never held in memory as a whole.
+     */
+    protected ObjectId transformBlob(final ObjectId blobId, final IOThrowableBiConsumer<ObjectStream, OutputStream> f, final Context c) {
+        return source.readBlob(blobId, in -> target.writeBlob(out -> f.accept(in, out), c), c);
     }
 
     /**
@@ -417,11 +1082,13 @@ public class RepositoryRewriter {
      * Updates ref objects.
      */
     protected void updateRefs(final Context c) {
+        target.beginRefBatch(c);
         for (final Ref ref : source.getRefs(c)) {
             if (confirmUpdateRef(ref, c)) {
                 updateRef(ref, c);
             }
         }
+        target.commitRefBatch(c);
     }
 
     /**
@@ -598,6 +1265,20 @@ public class RepositoryRewriter {
      */
     protected void cleanUp(final Context c) {}
 
+    /**
+     * Reports statistics of the entry cache.
+     */
+    protected void reportCacheStatistics(final Context c) {
+        log.info("Entries: {} rewritten, {} loaded from store, {} cache hits, {} duplicate rewrites avoided",
+                entryRewriteCount.sum(), entryLoadCount.sum(), entryHitCount.sum(), entryJoinCount.sum());
+        if (isSharingBlobs()) {
+            log.info("Blobs: {} cache hits across directories", blobHitCount.sum());
+        }
+        if (entryMapping instanceof EntryCache) {
+            log.info("Entry cache: {} entries, {} evicted", entryMapping.size(), ((EntryCache) entryMapping).getEvictionCount());
+        }
+    }
+
     /**
      * Exports source-to-destination mapping of commits.
      */
@@ -611,6 +1292,15 @@ public class RepositoryRewriter {
         return result;
     }
 
+    /**
+     * Exports source-to-destination mapping of commits to a binary file.
+     */
+    public void exportCommitMapping(final File file) {
+        synchronized (commitMapping) {
+            Try.io(() -> CommitMappingFile.write(commitMapping, file));
+        }
+    }
+
     /**
      * Imports source-to-destination mapping of commits.
      */
@@ -622,4 +1312,15 @@ public class RepositoryRewriter {
             commitMapping.put(src, dst);
         }
     }
+
+    /**
+     * Imports source-to-destination mapping of commits from a binary file.
+     */
+    public void importCommitMapping(final File file) {
+        final CommitMappingFile mapping = Try.io(() -> CommitMappingFile.open(file));
+        commitMapping.clear();
+        for (int i = 0; i < mapping.size(); i++) {
+            commitMapping.put(mapping.getSource(i), mapping.getDestination(i));
+        }
+    }
 }
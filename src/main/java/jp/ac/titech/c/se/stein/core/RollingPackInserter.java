@@ -0,0 +1,594 @@
+package jp.ac.titech.c.se.stein.core;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectIdOwnerMap;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.transport.PackedObjectInfo;
+import org.eclipse.jgit.util.IO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An object inserter writing objects into pack files instead of loose objects.
+ *
+ * The current pack file is completed once it exceeds the threshold size, and
+ * a new one is started. The objects are visible to readers only after their
+ * pack file is completed, i.e., on rolling over or flushing. Since flushing
+ * can be requested from another thread (e.g., on saving a checkpoint), the
+ * methods are synchronized.
+ *
+ * A pack file completed by flushing while still small is continued by the
+ * next object: it is copied into a new pack file, which replaces it once
+ * completed. This keeps frequent flushes from leaving many tiny pack files.
+ *
+ * A blob inserted with a path is stored as a delta against the blob inserted
+ * for the same path last time, if it is in the current pack file and the delta
+ * is small enough. The delta bases kept in memory are bounded by a budget
+ * shared by all the inserters; an inserter exceeding it evicts its own least
+ * recently used bases.
+ */
+public class RollingPackInserter extends ObjectInserter {
+    private static final Logger log = LoggerFactory.getLogger(RollingPackInserter.class);
+
+    /**
+     * Objects smaller than this are not worth being deltified.
+     */
+    private static final int MIN_DELTA_SIZE = 64;
+
+    /**
+     * Objects larger than this are neither deltified nor kept as delta bases.
+     */
+    private static final int MAX_BASE_SIZE = 4 << 20;
+
+    /**
+     * The total size of the delta bases kept in memory by all the inserters.
+     */
+    private static final long MAX_BASE_MEMORY = 256 << 20;
+
+    /**
+     * Pack files smaller than this are continued after being flushed.
+     */
+    private static final long MIN_PACK_SIZE = 16 << 20;
+
+    /**
+     * The maximum length of delta chains.
+     */
+    private static final int MAX_DEPTH = 50;
+
+    /**
+     * The prefix of the pack files being written. As with the temporary files
+     * of git, it is also removed by git-prune if left by a crash.
+     */
+    private static final String TEMP_PREFIX = "tmp_insert_";
+
+    private static final byte[] PACK_HEADER = { 'P', 'A', 'C', 'K', 0, 0, 0, 2, 0, 0, 0, 0 };
+
+    /**
+     * The size of the delta bases kept in memory by all the inserters.
+     */
+    private static final AtomicLong totalBaseMemory = new AtomicLong();
+
+    private final PackStorage storage;
+
+    private final File directory;
+
+    private final long threshold;
+
+    private final long minSize;
+
+    /**
+     * The filter of the objects in the database, or null if the database is
+     * always to be looked up.
+     */
+    private final ObjectIdBloomFilter filter;
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+    /**
+     * The last blob inserted for each path in the current pack file.
+     */
+    private final Map<String, Base> bases = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long baseMemory = 0;
+
+    private File packFile;
+
+    private PackStream out;
+
+    private ObjectIdOwnerMap<PackedObjectInfo> objects;
+
+    private List<PackedObjectInfo> objectList;
+
+    /**
+     * The inserter of the object database providing pack parsers, which is
+     * kept open until this inserter is closed.
+     */
+    private ObjectInserter parserInserter;
+
+    /**
+     * The completed pack file to be continued, or null if none.
+     */
+    private File resumablePack;
+
+    /**
+     * The completed pack file replaced by the current one, or null if none.
+     */
+    private File replacedPack;
+
+    /**
+     * The number of the objects taken over from the replaced pack file.
+     */
+    private int resumedCount;
+
+    public RollingPackInserter(final PackStorage storage, final long threshold, final ObjectIdBloomFilter filter) {
+        this.storage = storage;
+        this.directory = storage.getPackDirectory();
+        this.threshold = threshold;
+        this.minSize = Math.min(MIN_PACK_SIZE, threshold);
+        this.filter = filter;
+    }
+
+    /**
+     * Deletes the pack files left by the inserters of a previous run.
+     */
+    public static void deleteTemporaryFiles(final PackStorage storage) throws IOException {
+        final File[] files = storage.getPackDirectory().listFiles((d, name) -> name.startsWith(TEMP_PREFIX));
+        if (files != null) {
+            for (final File file : files) {
+                log.info("Deleting a stale temporary file: {}", file);
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * A blob to be a delta base.
+     */
+    private static class Base {
+        final byte[] data;
+
+        final long offset;
+
+        final int depth;
+
+        Base(final byte[] data, final long offset, final int depth) {
+            this.data = data;
+            this.offset = offset;
+            this.depth = depth;
+        }
+    }
+
+    @Override
+    public synchronized ObjectId insert(final int type, final byte[] data, final int off, final int len) throws IOException {
+        return insert(type, data, off, len, null);
+    }
+
+    /**
+     * Inserts a blob object, which may be stored as a delta against the blob
+     * inserted for the same path last time.
+     */
+    public synchronized ObjectId insert(final int type, final byte[] data, final String path) throws IOException {
+        return insert(type, data, 0, data.length, path);
+    }
+
+    private ObjectId insert(final int type, final byte[] data, final int off, final int len, final String path) throws IOException {
+        final ObjectId id = idFor(type, data, off, len);
+        if (exists(id)) {
+            return id;
+        }
+        beginObject();
+        final long offset = out.position;
+        final boolean isDeltifiable = path != null && type == Constants.OBJ_BLOB && len >= MIN_DELTA_SIZE && len <= MAX_BASE_SIZE;
+        final byte[] content = isDeltifiable ? copy(data, off, len) : null;
+        final Base base = isDeltifiable ? bases.get(path) : null;
+        final byte[] delta = base != null && base.depth < MAX_DEPTH ? encodeDelta(base.data, content) : null;
+        if (delta != null) {
+            writeHeader(Constants.OBJ_OFS_DELTA, delta.length);
+            writeOffset(offset - base.offset);
+            deflate(delta, 0, delta.length);
+        } else {
+            writeHeader(type, len);
+            deflate(data, off, len);
+        }
+        endObject(id, offset);
+        if (isDeltifiable) {
+            remember(path, new Base(content, offset, delta != null ? base.depth + 1 : 0));
+        }
+        rollIfFull();
+        return id;
+    }
+
+    @Override
+    public synchronized ObjectId insert(final int type, final long len, final InputStream in) throws IOException {
+        if (len <= MAX_BASE_SIZE) {
+            final byte[] data = new byte[(int) len];
+            IO.readFully(in, data, 0, data.length);
+            return insert(type, data, 0, data.length, null);
+        }
+
+        beginObject();
+        final long offset = out.position;
+        writeHeader(type, len);
+        final MessageDigest md = Constants.newMessageDigest();
+        md.update(Constants.encodedTypeString(type));
+        md.update((byte) ' ');
+        md.update(Constants.encodeASCII(len));
+        md.update((byte) 0);
+        deflater.reset();
+        final DeflaterOutputStream zip = new DeflaterOutputStream(out, deflater, 8192);
+        final byte[] buf = new byte[8192];
+        for (long rest = len; rest > 0;) {
+            final int n = in.read(buf, 0, (int) Math.min(buf.length, rest));
+            if (n < 0) {
+                throw new EOFException();
+            }
+            md.update(buf, 0, n);
+            zip.write(buf, 0, n);
+            rest -= n;
+        }
+        zip.finish();
+        final ObjectId id = ObjectId.fromRaw(md.digest());
+        if (exists(id)) {
+            out.truncate(offset);
+            return id;
+        }
+        endObject(id, offset);
+        rollIfFull();
+        return id;
+    }
+
+    /**
+     * Tests whether the given object has been already stored. The object
+     * database is looked up only if the filter cannot tell its absence.
+     */
+    private boolean exists(final ObjectId id) {
+        return (objects != null && objects.contains(id)) || ((filter == null || filter.mightContain(id)) && storage.has(id));
+    }
+
+    private static byte[] copy(final byte[] data, final int off, final int len) {
+        if (off == 0 && len == data.length) {
+            return data.clone();
+        }
+        final byte[] result = new byte[len];
+        System.arraycopy(data, off, result, 0, len);
+        return result;
+    }
+
+    /**
+     * Encodes a delta. Returns null if the delta is not small enough.
+     */
+    private static byte[] encodeDelta(final byte[] base, final byte[] target) throws IOException {
+        return PackStorage.encodeDelta(base, target, target.length / 2);
+    }
+
+    /**
+     * Keeps the given blob as the delta base for the path.
+     */
+    private void remember(final String path, final Base base) {
+        final Base old = bases.put(path, base);
+        addBaseMemory(base.data.length - (old != null ? old.data.length : 0));
+        final Iterator<Base> it = bases.values().iterator();
+        while (totalBaseMemory.get() > MAX_BASE_MEMORY && it.hasNext()) {
+            final int size = it.next().data.length;
+            it.remove();
+            addBaseMemory(-size);
+        }
+    }
+
+    private void addBaseMemory(final long size) {
+        baseMemory += size;
+        totalBaseMemory.addAndGet(size);
+    }
+
+    /**
+     * Forgets all the delta bases of this inserter.
+     */
+    private void clearBases() {
+        bases.clear();
+        addBaseMemory(-baseMemory);
+    }
+
+    private void beginObject() throws IOException {
+        if (out == null) {
+            Files.createDirectories(directory.toPath());
+            packFile = File.createTempFile(TEMP_PREFIX, ".pack", directory);
+            if (resumablePack != null) {
+                resume();
+            } else {
+                out = new PackStream(new RandomAccessFile(packFile, "rw"), 0);
+                out.write(PACK_HEADER);
+                objects = new ObjectIdOwnerMap<>();
+                objectList = new ArrayList<>();
+            }
+        }
+        out.crc.reset();
+    }
+
+    /**
+     * Starts the current pack file with the content of the resumable one,
+     * except for its checksum.
+     */
+    private void resume() throws IOException {
+        Files.copy(resumablePack.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        final RandomAccessFile file = new RandomAccessFile(packFile, "rw");
+        final long length = file.length() - Constants.OBJECT_ID_LENGTH;
+        file.setLength(length);
+        file.seek(length);
+        out = new PackStream(file, length);
+        replacedPack = resumablePack;
+        resumablePack = null;
+        resumedCount = objectList.size();
+    }
+
+    private void endObject(final ObjectId id, final long offset) {
+        final PackedObjectInfo info = new PackedObjectInfo(id);
+        info.setOffset(offset);
+        info.setCRC((int) out.crc.getValue());
+        objects.add(info);
+        objectList.add(info);
+        if (filter != null) {
+            filter.add(id);
+        }
+    }
+
+    private void writeHeader(final int type, long size) throws IOException {
+        int b = (type << 4) | (int) (size & 0x0f);
+        size >>>= 4;
+        while (size != 0) {
+            out.write(b | 0x80);
+            b = (int) (size & 0x7f);
+            size >>>= 7;
+        }
+        out.write(b);
+    }
+
+    private void writeOffset(long distance) throws IOException {
+        final byte[] buf = new byte[10];
+        int pos = buf.length - 1;
+        buf[pos] = (byte) (distance & 0x7f);
+        while ((distance >>>= 7) != 0) {
+            buf[--pos] = (byte) (0x80 | (--distance & 0x7f));
+        }
+        out.write(buf, pos, buf.length - pos);
+    }
+
+    private void deflate(final byte[] data, final int off, final int len) throws IOException {
+        deflater.reset();
+        final DeflaterOutputStream zip = new DeflaterOutputStream(out, deflater, 8192);
+        zip.write(data, off, len);
+        zip.finish();
+    }
+
+    private void rollIfFull() throws IOException {
+        if (out.position >= threshold) {
+            flush();
+        }
+    }
+
+    /**
+     * Returns a parser storing a pack into the object database directly. Note
+     * that the objects received are not added to the object filter.
+     */
+    @Override
+    public synchronized PackParser newPackParser(final InputStream in) throws IOException {
+        if (parserInserter == null) {
+            parserInserter = storage.newInserter();
+        }
+        return parserInserter.newPackParser(in);
+    }
+
+    /**
+     * Returns a reader of the object database. Note that the objects in the
+     * current pack file are not visible until flushed.
+     */
+    @Override
+    public ObjectReader newReader() {
+        return storage.newReader();
+    }
+
+    /**
+     * Completes the current pack file. A small one is kept to be continued.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (out == null) {
+            return;
+        }
+        boolean isResumable = false;
+        try {
+            if (objectList.size() == resumedCount) {
+                // nothing added: the replaced pack file, if any, is still to be continued
+                if (replacedPack != null) {
+                    closeFile();
+                    Files.deleteIfExists(packFile.toPath());
+                    resumablePack = replacedPack;
+                    replacedPack = null;
+                    isResumable = true;
+                }
+                return;
+            }
+            final boolean isSmall = out.position < minSize;
+            final byte[] checksum = out.finish(objectList.size());
+            final File indexFile = new File(directory, packFile.getName().replaceFirst("\\.pack$", ".idx"));
+            Collections.sort(objectList);
+            try (final OutputStream index = new BufferedOutputStream(new FileOutputStream(indexFile))) {
+                PackStorage.writeIndex(index, objectList, checksum);
+            }
+            final String name = "pack-" + ObjectId.fromRaw(checksum).name();
+            final File finalPack = new File(directory, name + ".pack");
+            Files.move(packFile.toPath(), finalPack.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.move(indexFile.toPath(), new File(directory, name + ".idx").toPath(), StandardCopyOption.ATOMIC_MOVE);
+            storage.openPack(finalPack);
+            log.debug("Wrote {} objects into {}", objectList.size(), name);
+            if (replacedPack != null) {
+                deletePack(replacedPack);
+                replacedPack = null;
+            }
+            resumedCount = 0;
+            if (isSmall) {
+                resumablePack = finalPack;
+                isResumable = true;
+            }
+        } finally {
+            if (isResumable) {
+                closeFile();
+            } else {
+                release();
+            }
+        }
+    }
+
+    /**
+     * Deletes a pack file replaced by another one containing all its objects.
+     */
+    private void deletePack(final File pack) throws IOException {
+        Files.deleteIfExists(pack.toPath());
+        Files.deleteIfExists(new File(directory, pack.getName().replaceFirst("\\.pack$", ".idx")).toPath());
+    }
+
+    /**
+     * Closes the current pack file, keeping the objects in it to be continued.
+     */
+    private void closeFile() throws IOException {
+        if (out != null) {
+            try {
+                out.file.close();
+            } finally {
+                out = null;
+            }
+        }
+    }
+
+    /**
+     * Discards the current pack file, if any.
+     */
+    private void release() throws IOException {
+        try {
+            if (out != null) {
+                try {
+                    out.file.close();
+                } finally {
+                    Files.deleteIfExists(packFile.toPath());
+                    out = null;
+                }
+            }
+        } finally {
+            objects = null;
+            objectList = null;
+            resumablePack = null;
+            replacedPack = null;
+            resumedCount = 0;
+            clearBases();
+        }
+    }
+
+    /**
+     * Releases the resources. As with the other inserters, the objects not
+     * flushed yet are discarded: the current pack file is deleted.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            Try.io(this::release);
+        } finally {
+            deflater.end();
+            if (parserInserter != null) {
+                parserInserter.close();
+                parserInserter = null;
+            }
+        }
+    }
+
+    /**
+     * A pack file output tracking the position and the CRC of the current object.
+     */
+    private static class PackStream extends OutputStream {
+        final RandomAccessFile file;
+
+        final OutputStream out;
+
+        final CRC32 crc = new CRC32();
+
+        long position;
+
+        PackStream(final RandomAccessFile file, final long position) throws IOException {
+            this.file = file;
+            this.position = position;
+            this.out = new BufferedOutputStream(new FileOutputStream(file.getFD()), 65536);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            crc.update(b);
+            position++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            crc.update(b, off, len);
+            position += len;
+        }
+
+        /**
+         * Discards the data written after the given position.
+         */
+        void truncate(final long offset) throws IOException {
+            out.flush();
+            file.setLength(offset);
+            file.seek(offset);
+            position = offset;
+        }
+
+        /**
+         * Fills the number of the objects in the header and appends the
+         * checksum. Returns the checksum.
+         *
+         * The checksum is computed by reading the file back: the header is
+         * the first input to SHA-1, and the number of the objects in it is
+         * known only now, so a digest updated along with writing cannot be
+         * patched afterwards.
+         */
+        byte[] finish(final int count) throws IOException {
+            out.flush();
+            file.seek(8);
+            file.writeInt(count);
+            file.seek(0);
+            final MessageDigest md = Constants.newMessageDigest();
+            final byte[] buf = new byte[65536];
+            for (int n; (n = file.read(buf)) > 0;) {
+                md.update(buf, 0, n);
+            }
+            final byte[] checksum = md.digest();
+            file.write(checksum);
+            file.getFD().sync();
+            return checksum;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package jp.ac.titech.c.se.stein.core;
+
+import java.util.Objects;
+
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.MutableObjectId;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.eclipse.jgit.util.RawParseUtils;
+
+import jp.ac.titech.c.se.stein.core.EntrySet.Entry;
+
+/**
+ * A cursor over the entries of a raw tree object.
+ *
+ * The current entry is held in reusable buffers, and no objects are allocated
+ * per entry unless its name contains non-ASCII characters. The cursor can be
+ * used as a lookup key of maps keyed by {@link Entry}: its hash code and
+ * equality are consistent with those of the entry it points to. Entry objects
+ * are materialized only on demand by {@link #getEntry()}.
+ */
+public class TreeCursor {
+    private final CanonicalTreeParser parser = new CanonicalTreeParser();
+
+    private final MutableObjectId id = new MutableObjectId();
+
+    private final String directory;
+
+    private boolean isStarted = false;
+
+    private FileMode mode;
+
+    private byte[] nameBuffer;
+
+    private int nameLength;
+
+    private boolean isAscii;
+
+    private int nameHash;
+
+    public TreeCursor(final byte[] raw, final String directory) {
+        this.parser.reset(raw);
+        this.directory = directory;
+    }
+
+    /**
+     * Moves to the next entry. Returns false if no more entries exist.
+     */
+    public boolean next() {
+        if (isStarted) {
+            parser.next(1);
+        }
+        isStarted = true;
+        if (parser.eof()) {
+            return false;
+        }
+        mode = FileMode.fromBits(parser.getEntryRawMode());
+        parser.getEntryObjectId(id);
+        nameBuffer = parser.getEntryPathBuffer();
+        nameLength = parser.getEntryPathLength();
+        isAscii = true;
+        int h = 0;
+        for (int i = 0; i < nameLength; i++) {
+            final int b = nameBuffer[i];
+            if (b < 0) {
+                isAscii = false;
+                break;
+            }
+            h = 31 * h + b;
+        }
+        nameHash = isAscii ? h : getName().hashCode();
+        return true;
+    }
+
+    /**
+     * Returns the mode of the current entry.
+     */
+    public FileMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Returns the object id of the current entry. The returned object is
+     * overwritten when the cursor moves.
+     */
+    public MutableObjectId getId() {
+        return id;
+    }
+
+    /**
+     * Returns the name of the current entry.
+     */
+    public String getName() {
+        return RawParseUtils.decode(nameBuffer, 0, nameLength);
+    }
+
+    /**
+     * Tests whether the current entry is a tree.
+     */
+    public boolean isTree() {
+        return FileMode.TREE.equals(mode.getBits());
+    }
+
+    /**
+     * Materializes the current entry.
+     */
+    public Entry getEntry() {
+        return new Entry(mode, getName(), id.toObjectId(), directory);
+    }
+
+    /**
+     * Tests whether the name of the current entry equals to the given one.
+     */
+    private boolean nameEquals(final String name) {
+        if (!isAscii) {
+            return getName().equals(name);
+        }
+        if (name.length() != nameLength) {
+            return false;
+        }
+        for (int i = 0; i < nameLength; i++) {
+            if (name.charAt(i) != nameBuffer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the same hash code as the one of the current entry.
+     */
+    @Override
+    public int hashCode() {
+        // same as Objects.hash(id, mode, name, directory)
+        int h = 1;
+        h = 31 * h + id.hashCode();
+        h = 31 * h + mode.hashCode();
+        h = 31 * h + nameHash;
+        h = 31 * h + Objects.hashCode(directory);
+        return h;
+    }
+
+    /**
+     * Tests whether the current entry equals to the given entry.
+     */
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj instanceof TreeCursor) {
+            return this == obj;
+        }
+        if (!(obj instanceof Entry)) {
+            return false;
+        }
+        final Entry other = (Entry) obj;
+        return id.equals(other.id) &&
+               mode.equals(other.mode) &&
+               nameEquals(other.name) &&
+               Objects.equals(directory, other.directory);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<TreeCursor:%s %s %s>", mode, directory != null ? directory + "/" + getName() : getName(), id.name());
+    }
+}
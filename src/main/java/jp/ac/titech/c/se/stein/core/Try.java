@@ -40,6 +40,16 @@ public class Try {
         R apply(T t) throws IOException;
     }
 
+    @FunctionalInterface
+    public static interface IOThrowableConsumer<T> {
+        void accept(T t) throws IOException;
+    }
+
+    @FunctionalInterface
+    public static interface IOThrowableBiConsumer<T, U> {
+        void accept(T t, U u) throws IOException;
+    }
+
     // ------
 
     public static void run(final ThrowableRunnable f) {
@@ -0,0 +1,139 @@
+package jp.ac.titech.c.se.stein.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.jgit.lib.MutableObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class CommitMappingFileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    private final Random random = new Random(0);
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "mapping");
+    }
+
+    private ObjectId randomId() {
+        final byte[] raw = new byte[20];
+        random.nextBytes(raw);
+        return ObjectId.fromRaw(raw);
+    }
+
+    private Map<ObjectId, ObjectId> randomMapping(final Map<ObjectId, ObjectId> result, final int size) {
+        for (int i = 0; i < size; i++) {
+            result.put(randomId(), randomId());
+        }
+        return result;
+    }
+
+    private void assertMapping(final Map<ObjectId, ObjectId> expected, final CommitMappingFile actual) {
+        assertEquals(expected.size(), actual.size());
+        final MutableObjectId result = new MutableObjectId();
+        for (final Map.Entry<ObjectId, ObjectId> e : expected.entrySet()) {
+            assertEquals(e.getValue(), actual.lookup(e.getKey()));
+            assertTrue(actual.lookupBackward(e.getValue(), result));
+            assertEquals(e.getKey(), result.toObjectId());
+        }
+        assertNull(actual.lookup(ObjectId.zeroId()));
+        assertFalse(actual.lookupBackward(ObjectId.zeroId(), result));
+    }
+
+    /**
+     * Rewrites the file into the format of version 1, which has no reverse index.
+     */
+    private void downgrade(final int size) throws IOException {
+        try (final RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.seek(4);
+            f.writeInt(CommitMappingFile.VERSION_FORWARD_ONLY);
+            f.setLength(CommitMappingFile.HEADER_SIZE + (long) size * CommitMappingFile.RECORD_SIZE);
+        }
+    }
+
+    @Test
+    public void testVersion2() throws IOException {
+        final Map<ObjectId, ObjectId> mapping = randomMapping(new ObjectIdMap(), 3000);
+        CommitMappingFile.write(mapping, file);
+        final CommitMappingFile result = CommitMappingFile.open(file);
+        assertTrue(result.hasReverseIndex());
+        for (int i = 1; i < result.size(); i++) {
+            assertTrue(result.getSource(i - 1).compareTo(result.getSource(i)) < 0);
+        }
+        assertMapping(mapping, result);
+    }
+
+    @Test
+    public void testOtherMaps() throws IOException {
+        final Map<ObjectId, ObjectId> mapping = randomMapping(new HashMap<>(), 1000);
+        CommitMappingFile.write(mapping, file);
+        assertMapping(mapping, CommitMappingFile.open(file));
+    }
+
+    @Test
+    public void testVersion1() throws IOException {
+        final Map<ObjectId, ObjectId> mapping = randomMapping(new ObjectIdMap(), 1000);
+        CommitMappingFile.write(mapping, file);
+        downgrade(mapping.size());
+        final CommitMappingFile result = CommitMappingFile.open(file);
+        assertFalse(result.hasReverseIndex());
+        // backward lookups fall back to a linear scan
+        assertMapping(mapping, result);
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        CommitMappingFile.write(new ObjectIdMap(), file);
+        assertEquals(CommitMappingFile.HEADER_SIZE, file.length());
+        final CommitMappingFile result = CommitMappingFile.open(file);
+        assertEquals(0, result.size());
+        assertMapping(new HashMap<>(), result);
+        downgrade(0);
+        assertMapping(new HashMap<>(), CommitMappingFile.open(file));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        CommitMappingFile.write(randomMapping(new ObjectIdMap(), 100), file);
+        try (final RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(f.length() - 1);
+        }
+        CommitMappingFile.open(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedHeader() throws IOException {
+        CommitMappingFile.write(new ObjectIdMap(), file);
+        try (final RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(CommitMappingFile.HEADER_SIZE - 1);
+        }
+        CommitMappingFile.open(file);
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnknownVersion() throws IOException {
+        CommitMappingFile.write(new ObjectIdMap(), file);
+        try (final RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.seek(4);
+            f.writeInt(CommitMappingFile.VERSION + 1);
+        }
+        CommitMappingFile.open(file);
+    }
+}
@@ -0,0 +1,102 @@
+package jp.ac.titech.c.se.stein.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import jp.ac.titech.c.se.stein.core.Context.Key;
+
+public class ContextTest {
+    private static void assertContext(final Map<Key, Object> expected, final Context actual) {
+        for (final Key k : Key.ALL) {
+            assertEquals(expected.get(k), actual.get(k));
+            assertEquals(expected.containsKey(k), actual.containsKey(k));
+        }
+        assertEquals(expected.keySet(), actual.keySet());
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new HashMap<>(expected).entrySet(), actual.entrySet());
+    }
+
+    @Test
+    public void testEmpty() {
+        final Context c = Context.init();
+        assertTrue(c.isEmpty());
+        assertNull(c.get(Key.path));
+        assertNull(c.get("path"));
+        assertEquals("", c.toString());
+    }
+
+    @Test
+    public void testOverlays() {
+        Context c = Context.init();
+        final Map<Key, Object> expected = new EnumMap<>(Key.class);
+        // updates the keys cyclically beyond the depth of flattening
+        for (int i = 0; i < 40; i++) {
+            final Key k = Key.ALL[i % 3 == 0 ? 1 : i % Key.SIZE];
+            final Object v = "value" + i;
+            c = c.with(k, v);
+            expected.put(k, v);
+            assertContext(expected, c);
+        }
+    }
+
+    @Test
+    public void testFlattening() {
+        // eight overlays on an array, all of which update the same key
+        Context c = Context.init().with(Key.conf, "conf");
+        for (int i = 0; i < 7; i++) {
+            c = c.with(Key.path, "path" + i);
+        }
+        final Map<Key, Object> expected = new EnumMap<>(Key.class);
+        expected.put(Key.conf, "conf");
+        expected.put(Key.path, "path6");
+        assertContext(expected, c);
+
+        // the next update is to be on a flattened array
+        final Context flattened = c.with(Key.entry, "entry");
+        expected.put(Key.entry, "entry");
+        assertContext(expected, flattened);
+        final Context overwritten = c.with(Key.path, "path7");
+        expected.remove(Key.entry);
+        expected.put(Key.path, "path7");
+        assertContext(expected, overwritten);
+        final Context cleared = c.with(Key.conf, null);
+        assertNull(cleared.get(Key.conf));
+        assertFalse(cleared.containsKey(Key.conf));
+        assertEquals("path6", cleared.get(Key.path));
+    }
+
+    @Test
+    public void testImmutability() {
+        final List<Context> contexts = new ArrayList<>();
+        Context c = Context.init();
+        for (int i = 0; i < 20; i++) {
+            contexts.add(c);
+            c = c.with(Key.path, "path" + i);
+        }
+        for (int i = 1; i < contexts.size(); i++) {
+            assertEquals("path" + (i - 1), contexts.get(i).get(Key.path));
+            // branches never affect their parents
+            contexts.get(i).with(Key.path, "other");
+            assertEquals("path" + (i - 1), contexts.get(i).get(Key.path));
+        }
+    }
+
+    @Test
+    public void testToString() {
+        Context c = Context.init();
+        for (int i = 0; i < 10; i++) {
+            c = c.with(Key.path, "dir" + i);
+        }
+        assertEquals("path: \"dir9\"", c.toString());
+    }
+}
@@ -0,0 +1,85 @@
+package jp.ac.titech.c.se.stein.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.jgit.lib.MutableObjectId;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class ObjectIdMapTest {
+    private final Random random = new Random(0);
+
+    private ObjectId randomId() {
+        final byte[] raw = new byte[20];
+        random.nextBytes(raw);
+        return ObjectId.fromRaw(raw);
+    }
+
+    @Test
+    public void testPutAndGet() {
+        final ObjectIdMap map = new ObjectIdMap();
+        final ObjectId key = randomId(), value1 = randomId(), value2 = randomId();
+        assertNull(map.put(key, value1));
+        assertEquals(value1, map.put(key, value2));
+        assertEquals(1, map.size());
+        assertEquals(value2, map.get(key));
+        final MutableObjectId mutable = new MutableObjectId();
+        mutable.fromObjectId(key);
+        assertEquals(value2, map.get(mutable));
+        assertTrue(map.containsKey(key));
+        assertFalse(map.containsKey(randomId()));
+        assertNull(map.get(randomId()));
+        assertNull(map.get(key.name()));
+    }
+
+    @Test
+    public void testGrowth() {
+        final ObjectIdMap map = new ObjectIdMap();
+        final Map<ObjectId, ObjectId> expected = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            final ObjectId key = randomId(), value = randomId();
+            map.put(key, value);
+            expected.put(key, value);
+        }
+        assertEquals(expected.size(), map.size());
+        for (final Map.Entry<ObjectId, ObjectId> e : expected.entrySet()) {
+            assertEquals(e.getValue(), map.get(e.getKey()));
+        }
+        assertEquals(expected, map);
+        assertEquals(expected, new HashMap<>(map));
+    }
+
+    @Test
+    public void testCopyRecordsTo() {
+        final ObjectIdMap map = new ObjectIdMap();
+        for (int i = 0; i < 100; i++) {
+            map.put(randomId(), randomId());
+        }
+        final byte[] records = new byte[map.size() * 40];
+        assertEquals(map.size(), map.copyRecordsTo(records));
+        final Map<ObjectId, ObjectId> actual = new HashMap<>();
+        for (int pos = 0; pos < records.length; pos += 40) {
+            actual.put(ObjectId.fromRaw(records, pos), ObjectId.fromRaw(records, pos + 20));
+        }
+        assertEquals(map, actual);
+    }
+
+    @Test
+    public void testClear() {
+        final ObjectIdMap map = new ObjectIdMap();
+        final ObjectId key = randomId();
+        map.put(key, randomId());
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(key));
+        assertFalse(map.entrySet().iterator().hasNext());
+        assertEquals(0, map.copyRecordsTo(new byte[0]));
+    }
+}
@@ -0,0 +1,85 @@
+package jp.ac.titech.c.se.stein.core;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+import jp.ac.titech.c.se.stein.core.EntrySet.Entry;
+
+public class RepositoryAccessTest {
+    private static Entry blob(final String name) {
+        return new Entry(FileMode.REGULAR_FILE, name, ObjectId.zeroId());
+    }
+
+    private static Entry tree(final String name) {
+        return new Entry(FileMode.TREE, name, ObjectId.zeroId());
+    }
+
+    /**
+     * Returns the names sorted by the UTF-8 bytes of the names, where the name
+     * of a tree is followed by "/".
+     */
+    private static List<String> gitOrder(final List<Entry> entries) {
+        final List<String> result = new ArrayList<>();
+        entries.forEach(e -> result.add(e.isTree() ? e.name + "/" : e.name));
+        result.sort((n1, n2) -> compareBytes(n1.getBytes(UTF_8), n2.getBytes(UTF_8)));
+        result.replaceAll(n -> n.endsWith("/") ? n.substring(0, n.length() - 1) : n);
+        return result;
+    }
+
+    private static int compareBytes(final byte[] b1, final byte[] b2) {
+        for (int i = 0; i < b1.length && i < b2.length; i++) {
+            if (b1[i] != b2[i]) {
+                return (b1[i] & 0xff) - (b2[i] & 0xff);
+            }
+        }
+        return b1.length - b2.length;
+    }
+
+    @Test
+    public void testTreeFollowedBySlash() {
+        // "a.b" < "a/" < "a0", since '.' < '/' < '0'
+        assertTrue(RepositoryAccess.compareEntries(blob("a.b"), tree("a")) < 0);
+        assertTrue(RepositoryAccess.compareEntries(tree("a"), blob("a0")) < 0);
+        // "a" < "a.b" for a blob
+        assertTrue(RepositoryAccess.compareEntries(blob("a"), blob("a.b")) < 0);
+        assertTrue(RepositoryAccess.compareEntries(blob("a"), tree("a")) < 0);
+        assertEquals(0, RepositoryAccess.compareEntries(tree("a"), tree("a")));
+    }
+
+    @Test
+    public void testCodePointOrder() {
+        // U+1F600 is encoded as a surrogate pair, which String.compareTo puts before U+FFFD
+        assertTrue("😀".compareTo("�") < 0);
+        assertTrue(RepositoryAccess.compareEntries(blob("�"), blob("😀")) < 0);
+        assertTrue(RepositoryAccess.compareEntries(blob("z"), blob("é")) < 0);
+    }
+
+    @Test
+    public void testAgainstTreeFormatter() {
+        final List<Entry> entries = Arrays.asList(tree("a"), blob("a.b"), blob("a0"), tree("b-"), blob("b"), blob("😀"), tree("�"), blob("é"));
+        final List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(RepositoryAccess::compareEntries);
+        assertTrue(RepositoryAccess.isSorted(sorted));
+        assertFalse(RepositoryAccess.isSorted(entries));
+        final List<String> names = new ArrayList<>();
+        sorted.forEach(e -> names.add(e.name));
+        assertEquals(Arrays.asList("a.b", "a", "a0", "b", "b-", "é", "�", "😀"), names);
+        assertEquals(names, gitOrder(entries));
+    }
+
+    @Test
+    public void testDuplicates() {
+        assertFalse(RepositoryAccess.isSorted(Arrays.asList(blob("a"), blob("a"))));
+        assertTrue(RepositoryAccess.isSorted(Arrays.asList(blob("a"), tree("a"))));
+    }
+}
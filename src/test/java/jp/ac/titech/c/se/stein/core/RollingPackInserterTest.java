@@ -0,0 +1,217 @@
+package jp.ac.titech.c.se.stein.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.jgit.internal.storage.file.FileRepository;
+import org.eclipse.jgit.internal.storage.file.ObjectDirectory;
+import org.eclipse.jgit.internal.storage.file.PackIndex;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.ObjectStream;
+import org.eclipse.jgit.util.IO;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RollingPackInserterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileRepository repo;
+
+    private ObjectDirectory db;
+
+    private final Random random = new Random(0);
+
+    @Before
+    public void setUp() throws IOException {
+        repo = new FileRepository(new File(folder.getRoot(), "repo.git"));
+        repo.create(true);
+        db = repo.getObjectDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        repo.close();
+    }
+
+    private RollingPackInserter newInserter(final long threshold) {
+        return new RollingPackInserter(PackStorage.of(repo), threshold, new ObjectIdBloomFilter(1024));
+    }
+
+    private byte[] randomBytes(final int size) {
+        final byte[] result = new byte[size];
+        random.nextBytes(result);
+        return result;
+    }
+
+    private File[] listFiles(final String suffix) {
+        return new File(db.getDirectory(), "pack").listFiles((d, name) -> name.endsWith(suffix));
+    }
+
+    private long countIndexedObjects() throws IOException {
+        long result = 0;
+        for (final File file : listFiles(".idx")) {
+            result += PackIndex.open(file).getObjectCount();
+        }
+        return result;
+    }
+
+    private void assertReadable(final Map<ObjectId, byte[]> expected) throws IOException {
+        try (final ObjectReader reader = repo.newObjectReader()) {
+            for (final Map.Entry<ObjectId, byte[]> e : expected.entrySet()) {
+                assertArrayEquals(e.getValue(), reader.open(e.getKey(), Constants.OBJ_BLOB).getCachedBytes(Integer.MAX_VALUE));
+            }
+        }
+    }
+
+    @Test
+    public void testDeltas() throws IOException {
+        final Map<ObjectId, byte[]> expected = new LinkedHashMap<>();
+        byte[] data = randomBytes(16384);
+        long rawSize = 0;
+        try (final RollingPackInserter ins = newInserter(Long.MAX_VALUE)) {
+            for (int i = 0; i < 100; i++) {
+                data = data.clone();
+                System.arraycopy(randomBytes(64), 0, data, random.nextInt(data.length - 64), 64);
+                expected.put(ins.insert(Constants.OBJ_BLOB, data, "dir/file"), data);
+                rawSize += data.length;
+            }
+            ins.flush();
+        }
+        final File[] packs = listFiles(".pack");
+        assertEquals(1, packs.length);
+        assertTrue(packs[0].length() < rawSize / 10);
+        assertEquals(expected.size(), countIndexedObjects());
+        assertReadable(expected);
+    }
+
+    @Test
+    public void testLargeObjects() throws IOException {
+        final Map<ObjectId, byte[]> expected = new LinkedHashMap<>();
+        try (final RollingPackInserter ins = newInserter(Long.MAX_VALUE)) {
+            for (int i = 0; i < 2; i++) {
+                final byte[] data = randomBytes((5 << 20) + i);
+                final ObjectId id = ins.insert(Constants.OBJ_BLOB, data.length, new ByteArrayInputStream(data));
+                assertEquals(ins.idFor(Constants.OBJ_BLOB, data), id);
+                expected.put(id, data);
+            }
+            ins.flush();
+        }
+        assertEquals(expected.size(), countIndexedObjects());
+        try (final ObjectReader reader = repo.newObjectReader()) {
+            for (final Map.Entry<ObjectId, byte[]> e : expected.entrySet()) {
+                try (final ObjectStream in = reader.open(e.getKey(), Constants.OBJ_BLOB).openStream()) {
+                    final byte[] actual = new byte[(int) in.getSize()];
+                    IO.readFully(in, actual, 0, actual.length);
+                    assertArrayEquals(e.getValue(), actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDuplicates() throws IOException {
+        final Map<ObjectId, byte[]> expected = new LinkedHashMap<>();
+        final byte[] small = randomBytes(1000);
+        final byte[] large = randomBytes(5 << 20);
+        try (final RollingPackInserter ins = newInserter(Long.MAX_VALUE)) {
+            for (int i = 0; i < 3; i++) {
+                expected.put(ins.insert(Constants.OBJ_BLOB, small), small);
+                expected.put(ins.insert(Constants.OBJ_BLOB, small, "file"), small);
+                expected.put(ins.insert(Constants.OBJ_BLOB, large.length, new ByteArrayInputStream(large)), large);
+                ins.flush();
+            }
+        }
+        assertEquals(2, expected.size());
+        assertEquals(1, listFiles(".pack").length);
+        assertEquals(2, countIndexedObjects());
+        assertReadable(expected);
+    }
+
+    @Test
+    public void testRollOver() throws IOException {
+        final Map<ObjectId, byte[]> expected = new LinkedHashMap<>();
+        try (final RollingPackInserter ins = newInserter(64 << 10)) {
+            for (int i = 0; i < 200; i++) {
+                final byte[] data = randomBytes(1000 + i);
+                expected.put(ins.insert(Constants.OBJ_BLOB, data, "file" + i % 10), data);
+            }
+            final byte[] large = randomBytes(5 << 20);
+            expected.put(ins.insert(Constants.OBJ_BLOB, large.length, new ByteArrayInputStream(large)), large);
+            ins.flush();
+        }
+        assertTrue(listFiles(".pack").length > 1);
+        assertEquals(listFiles(".pack").length, listFiles(".idx").length);
+        assertEquals(expected.size(), countIndexedObjects());
+        assertReadable(expected);
+    }
+
+    @Test
+    public void testSmallFlushes() throws IOException {
+        final Map<ObjectId, byte[]> expected = new LinkedHashMap<>();
+        try (final RollingPackInserter ins = newInserter(Long.MAX_VALUE)) {
+            for (int i = 0; i < 5; i++) {
+                for (int j = 0; j < 10; j++) {
+                    final byte[] data = randomBytes(1000);
+                    expected.put(ins.insert(Constants.OBJ_BLOB, data, "file" + j), data);
+                }
+                ins.flush();
+                assertEquals(1, listFiles(".pack").length);
+                assertReadable(expected);
+            }
+        }
+        assertEquals(1, listFiles(".idx").length);
+        assertEquals(expected.size(), countIndexedObjects());
+    }
+
+    @Test
+    public void testObjectsOfOtherTypes() throws IOException {
+        final byte[] data = "content\n".getBytes();
+        final ObjectId blob, tree;
+        try (final RollingPackInserter ins = newInserter(Long.MAX_VALUE)) {
+            blob = ins.insert(Constants.OBJ_BLOB, data, "file");
+            tree = ins.insert(Constants.OBJ_TREE, new byte[0]);
+            ins.flush();
+        }
+        assertEquals(ObjectId.fromString("4b825dc642cb6eb9a060e54bf8d69288fbee4904"), tree);
+        try (final ObjectReader reader = repo.newObjectReader()) {
+            assertArrayEquals(data, reader.open(blob, Constants.OBJ_BLOB).getBytes());
+            assertEquals(0, reader.open(tree, Constants.OBJ_TREE).getSize());
+        }
+    }
+
+    @Test
+    public void testCloseWithoutFlush() throws IOException {
+        final ObjectId id;
+        try (final RollingPackInserter ins = newInserter(Long.MAX_VALUE)) {
+            id = ins.insert(Constants.OBJ_BLOB, randomBytes(1000), "file");
+        }
+        assertEquals(0, listFiles(".pack").length);
+        assertFalse(db.has(id));
+    }
+
+    @Test
+    public void testDeleteTemporaryFiles() throws IOException {
+        try (final RollingPackInserter ins = newInserter(Long.MAX_VALUE)) {
+            ins.insert(Constants.OBJ_BLOB, randomBytes(1000), "file");
+            assertEquals(1, listFiles(".pack").length);
+            // as if left by a crash
+            RollingPackInserter.deleteTemporaryFiles(PackStorage.of(repo));
+            assertEquals(0, listFiles(".pack").length);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package jp.ac.titech.c.se.stein.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.junit.Test;
+
+import jp.ac.titech.c.se.stein.core.EntrySet.Entry;
+
+public class TreeCursorTest {
+    private static final ObjectId ID1 = ObjectId.fromString("0123456789012345678901234567890123456789");
+
+    private static final ObjectId ID2 = ObjectId.fromString("9876543210987654321098765432109876543210");
+
+    /**
+     * The entries of a tree in the order of Git, including non-ASCII names.
+     */
+    private static final Entry[] ENTRIES = {
+        new Entry(FileMode.REGULAR_FILE, "README", ID1, "dir"),
+        new Entry(FileMode.EXECUTABLE_FILE, "build.sh", ID2, "dir"),
+        new Entry(FileMode.TREE, "src", ID2, "dir"),
+        new Entry(FileMode.SYMLINK, "été", ID1, "dir"),
+        new Entry(FileMode.REGULAR_FILE, "文書.txt", ID1, "dir"),
+        new Entry(FileMode.GITLINK, "😀", ID2, "dir"),
+    };
+
+    private static byte[] format(final Entry... entries) {
+        final TreeFormatter f = new TreeFormatter();
+        for (final Entry e : entries) {
+            f.append(e.name, e.mode, e.id);
+        }
+        return f.toByteArray();
+    }
+
+    @Test
+    public void testEntries() {
+        final TreeCursor cursor = new TreeCursor(format(ENTRIES), "dir");
+        for (final Entry expected : ENTRIES) {
+            assertTrue(cursor.next());
+            assertEquals(expected.mode, cursor.getMode());
+            assertEquals(expected.name, cursor.getName());
+            assertEquals(expected.id, cursor.getId());
+            assertEquals(expected.isTree(), cursor.isTree());
+            assertEquals(expected, cursor.getEntry());
+        }
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void testConsistencyWithEntry() {
+        final TreeCursor cursor = new TreeCursor(format(ENTRIES), "dir");
+        for (final Entry expected : ENTRIES) {
+            assertTrue(cursor.next());
+            assertEquals(expected.hashCode(), cursor.hashCode());
+            assertTrue(cursor.equals(expected));
+            assertTrue(expected.equals(cursor));
+        }
+    }
+
+    @Test
+    public void testDifferentEntries() {
+        final TreeCursor cursor = new TreeCursor(format(ENTRIES[0]), "dir");
+        assertTrue(cursor.next());
+        final Entry e = ENTRIES[0];
+        assertNotEquals(cursor, new Entry(e.mode, e.name, e.id, null));
+        assertNotEquals(cursor, new Entry(e.mode, e.name, e.id, "other"));
+        assertNotEquals(cursor, new Entry(FileMode.EXECUTABLE_FILE, e.name, e.id, e.directory));
+        assertNotEquals(cursor, new Entry(e.mode, "readme", e.id, e.directory));
+        assertNotEquals(cursor, new Entry(e.mode, e.name, ID2, e.directory));
+    }
+
+    @Test
+    public void testLookup() {
+        final Map<Entry, EntrySet> map = new HashMap<>();
+        for (final Entry e : ENTRIES) {
+            map.put(e, e);
+        }
+        final TreeCursor cursor = new TreeCursor(format(ENTRIES), "dir");
+        for (final Entry expected : ENTRIES) {
+            assertTrue(cursor.next());
+            assertTrue(map.containsKey(cursor));
+            assertSame(expected, map.get(cursor));
+        }
+        final EntryCache cache = new EntryCache(100);
+        cache.putAll(map);
+        final TreeCursor another = new TreeCursor(format(ENTRIES), "dir");
+        for (final Entry expected : ENTRIES) {
+            assertTrue(another.next());
+            assertSame(expected, cache.get(another));
+        }
+    }
+}